@@ -0,0 +1,54 @@
+package tech.ydb.logstash;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Generator of JSON log records of different sizes for benchmarks
+ */
+public class JsonPayloads {
+    private JsonPayloads() { }
+
+    public static int fieldsCount(String size) {
+        switch (size) {
+            case "small": return 5;
+            case "medium": return 40;
+            case "large": return 200;
+            default:
+                throw new IllegalArgumentException("Unknown payload size " + size);
+        }
+    }
+
+    public static byte[] jsonRecord(int fieldsCount, int seed) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        for (int idx = 0; idx < fieldsCount; idx++) {
+            if (idx > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append("field").append(idx).append("\":");
+            switch (idx % 6) {
+                case 0:
+                    sb.append('"').append("text value ").append(seed).append(" of field ").append(idx).append('"');
+                    break;
+                case 1:
+                    sb.append(1000L * seed + idx);
+                    break;
+                case 2:
+                    sb.append(seed / 7.0d + idx);
+                    break;
+                case 3:
+                    sb.append(idx % 2 == 0);
+                    break;
+                case 4:
+                    sb.append("{\"host\":\"host-").append(seed % 16).append("\",\"port\":").append(8000 + idx)
+                            .append(",\"tags\":[\"a\",\"b\",\"c\"]}");
+                    break;
+                default:
+                    sb.append("[").append(idx).append(',').append(seed).append(",null]");
+                    break;
+            }
+        }
+        sb.append('}');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,69 @@
+package tech.ydb.logstash;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding of topic messages to the event maps in the input plugin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MessageHandlerBenchmark {
+    private static final int MESSAGES_COUNT = 64;
+
+    @Param({"small", "medium", "large"})
+    public String payload;
+
+    private MessageHandler jsonHandler;
+    private MessageHandler projectedJsonHandler;
+    private MessageHandler rawHandler;
+    private byte[][] messages;
+
+    @Setup
+    public void setup() {
+        jsonHandler = new MessageHandler(map -> { }, "JSON", 0, 0, false);
+        rawHandler = new MessageHandler(map -> { }, null, 0, 0, false);
+        // a few fields of the wide record, all other values are skipped by the parser
+        projectedJsonHandler = new MessageHandler(map -> { }, "JSON", null, Collections.emptyMap(), 0, 0, false, null,
+                JsonProjection.of(Arrays.asList("field0", "field1", "[field4][host]"), null),
+                PluginMetrics.of(null, null));
+
+        messages = new byte[MESSAGES_COUNT][];
+        for (int idx = 0; idx < MESSAGES_COUNT; idx++) {
+            messages[idx] = JsonPayloads.jsonRecord(JsonPayloads.fieldsCount(payload), idx);
+        }
+    }
+
+    @Benchmark
+    public void processJsonMessage(Blackhole bh) {
+        for (byte[] message : messages) {
+            bh.consume(jsonHandler.processMessage(message));
+        }
+    }
+
+    @Benchmark
+    public void processProjectedJsonMessage(Blackhole bh) {
+        for (byte[] message : messages) {
+            bh.consume(projectedJsonHandler.processMessage(message));
+        }
+    }
+
+    @Benchmark
+    public void processNonJsonMessage(Blackhole bh) {
+        for (byte[] message : messages) {
+            bh.consume(rawHandler.processMessage(message));
+        }
+    }
+}
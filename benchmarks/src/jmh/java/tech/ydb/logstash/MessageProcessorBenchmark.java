@@ -0,0 +1,68 @@
+package tech.ydb.logstash;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import co.elastic.logstash.api.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Serialization of Logstash events to topic messages in the output plugin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MessageProcessorBenchmark {
+    private static final int EVENTS_COUNT = 64;
+
+    @Param({"small", "medium", "large"})
+    public String payload;
+
+    private Event[] events;
+
+    @Setup
+    public void setup() {
+        int fieldsCount = JsonPayloads.fieldsCount(payload);
+
+        events = new Event[EVENTS_COUNT];
+        for (int ev = 0; ev < EVENTS_COUNT; ev++) {
+            Event event = new org.logstash.Event();
+            event.setEventTimestamp(Instant.ofEpochMilli(1581601437567L + ev));
+            for (int idx = 0; idx < fieldsCount; idx++) {
+                event.setField("field" + idx, fieldValue(idx, ev));
+            }
+            events[ev] = event;
+        }
+    }
+
+    @Benchmark
+    public void processJsonString(Blackhole bh) {
+        for (Event event : events) {
+            bh.consume(MessageProcessor.processJsonString(event));
+        }
+    }
+
+    private static Object fieldValue(int idx, int ev) {
+        switch (idx % 5) {
+            case 0: return "text value " + ev + " of field " + idx;
+            case 1: return 1000L * ev + idx;
+            case 2: return ev / 7.0d + idx;
+            case 3: return idx % 2 == 0;
+            default:
+                Map<String, Object> inner = new HashMap<>();
+                inner.put("host", "host-" + (ev % 16));
+                inner.put("port", 8000 + idx);
+                return inner;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package tech.ydb.logstash;
+
+import java.util.concurrent.CompletableFuture;
+
+import tech.ydb.core.Status;
+import tech.ydb.table.description.TableDescription;
+import tech.ydb.table.values.ListValue;
+
+/**
+ * Client without any network calls, measures only the work of the plugin
+ */
+public class NopYdbClient implements YdbClient {
+    private static final CompletableFuture<Status> SUCCESS = CompletableFuture.completedFuture(Status.SUCCESS);
+
+    private final TableDescription description;
+
+    public NopYdbClient(TableDescription description) {
+        this.description = description;
+    }
+
+    @Override
+    public String getDatabase() {
+        return "/local";
+    }
+
+    @Override
+    public TableDescription desribeTable(String tablePath) {
+        return description;
+    }
+
+    @Override
+    public void bulkUpsert(String tablePath, ListValue messages) {
+        // nothing
+    }
+
+    @Override
+    public CompletableFuture<Status> bulkUpsertAsync(String tablePath, ListValue messages) {
+        return SUCCESS;
+    }
+
+    @Override
+    public CompletableFuture<Status> bulkUpsertCsvAsync(String tablePath, byte[] csv) {
+        return SUCCESS;
+    }
+
+    @Override
+    public long getRetriesCount() {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        // nothing
+    }
+}
@@ -0,0 +1,106 @@
+package tech.ydb.logstash;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import co.elastic.logstash.api.Event;
+import org.logstash.plugins.ConfigurationImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import tech.ydb.table.description.TableDescription;
+import tech.ydb.table.values.PrimitiveType;
+
+/**
+ * Building of BulkUpsert rows from Logstash events, the client doesn't send anything
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StorageOutputBenchmark {
+    private static final UUID FIXED_UUID = UUID.fromString("2ea8e0ea-2e42-4e2c-bbd1-3c3a4b0a0bc2");
+
+    @Param({"125", "1000"})
+    public int batchSize;
+
+    @Param({"5", "40"})
+    public int columnsCount;
+
+    private YdbStorage storage;
+    private List<Event> events;
+
+    @Setup
+    public void setup() {
+        TableDescription.Builder table = TableDescription.newBuilder()
+                .addNonnullColumn("id", PrimitiveType.Text)
+                .addNonnullColumn("ts", PrimitiveType.Timestamp)
+                .setPrimaryKey("id");
+        for (int idx = 0; idx < columnsCount; idx++) {
+            table.addNullableColumn(columnName(idx), columnType(idx));
+        }
+        TableDescription description = table.build();
+
+        Map<String, Object> config = new HashMap<>();
+        config.put(YdbStorage.CONNECTION.name(), "grpc://localhost:2136/local");
+        config.put(YdbStorage.TABLE_NAME.name(), "benchmark");
+        config.put(YdbStorage.UUID_COLUMN_NAME.name(), "id");
+        config.put(YdbStorage.TIMESTAMP_COLUMN_NAME.name(), "ts");
+
+        storage = new YdbStorage("benchmark", new ConfigurationImpl(config), null,
+                (connectionString, auth) -> new NopYdbClient(description), () -> FIXED_UUID);
+
+        events = new ArrayList<>(batchSize);
+        for (int ev = 0; ev < batchSize; ev++) {
+            Event event = new org.logstash.Event();
+            event.setEventTimestamp(Instant.ofEpochMilli(1581601437567L + ev));
+            for (int idx = 0; idx < columnsCount; idx++) {
+                event.setField(columnName(idx), columnValue(idx, ev));
+            }
+            events.add(event);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        storage.stop();
+    }
+
+    @Benchmark
+    public void output() {
+        storage.output(events);
+    }
+
+    private static String columnName(int idx) {
+        return "column" + idx;
+    }
+
+    private static PrimitiveType columnType(int idx) {
+        switch (idx % 4) {
+            case 0: return PrimitiveType.Text;
+            case 1: return PrimitiveType.Int64;
+            case 2: return PrimitiveType.Double;
+            default: return PrimitiveType.Uint16;
+        }
+    }
+
+    private static Object columnValue(int idx, int ev) {
+        switch (idx % 4) {
+            case 0: return "value of column " + idx + " in event " + ev;
+            case 1: return 1000L * ev + idx;
+            case 2: return ev / 3.0d;
+            default: return ev % 1000;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package tech.ydb.logstash;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import tech.ydb.table.values.PrimitiveType;
+
+/**
+ * Conversion of one value of the given Java class to every YDB type supported for this class
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TypeConverterBenchmark {
+    @Param({"Boolean", "Byte", "Short", "Integer", "Long", "Float", "Double", "String", "Bytes", "Instant", "UUID"})
+    public String source;
+
+    private Object value;
+    private PrimitiveType[] types;
+    private TypeConverter.ColumnConverter[] converters;
+
+    @Setup
+    public void setup() {
+        value = sampleValue(source);
+
+        List<PrimitiveType> supported = new ArrayList<>();
+        for (PrimitiveType type : PrimitiveType.values()) {
+            if (TypeConverter.toValue(value, type) != null) {
+                supported.add(type);
+            }
+        }
+
+        types = supported.toArray(new PrimitiveType[0]);
+        converters = new TypeConverter.ColumnConverter[types.length];
+        for (int idx = 0; idx < types.length; idx++) {
+            converters[idx] = TypeConverter.compile(types[idx]);
+        }
+    }
+
+    @Benchmark
+    public void toValue(Blackhole bh) {
+        for (PrimitiveType type : types) {
+            bh.consume(TypeConverter.toValue(value, type));
+        }
+    }
+
+    @Benchmark
+    public void compiledConverter(Blackhole bh) {
+        for (TypeConverter.ColumnConverter converter : converters) {
+            bh.consume(converter.convert(value));
+        }
+    }
+
+    private static Object sampleValue(String source) {
+        switch (source) {
+            case "Boolean": return Boolean.TRUE;
+            case "Byte": return (byte) 12;
+            case "Short": return (short) 1234;
+            case "Integer": return 123456;
+            case "Long": return 1581601437567L;
+            case "Float": return 1.5f;
+            case "Double": return -2.25d;
+            case "String": return "some text value of a log event";
+            case "Bytes": return "some bytes value of a log event".getBytes(StandardCharsets.UTF_8);
+            case "Instant": return Instant.ofEpochMilli(1581601437567L);
+            case "UUID": return UUID.fromString("2ea8e0ea-2e42-4e2c-bbd1-3c3a4b0a0bc2");
+            default:
+                throw new IllegalArgumentException("Unknown source " + source);
+        }
+    }
+}
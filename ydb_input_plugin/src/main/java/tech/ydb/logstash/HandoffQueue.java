@@ -0,0 +1,115 @@
+package tech.ydb.logstash;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue between callbacks of the reader and the consumer of events. Tasks are executed one by one in order of
+ * adding by own thread. The thread of the reader is blocked while the queue is full, so the reader doesn't take new
+ * data until the consumer frees the space and the count of read but not consumed events is limited.
+ */
+final class HandoffQueue {
+    private static final Runnable STOP = () -> { };
+
+    private final Logger logger = LoggerFactory.getLogger(HandoffQueue.class);
+    private final BlockingQueue<Runnable> queue;
+    private final Thread thread;
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed = false;
+
+    HandoffQueue(String name, int capacity) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    /**
+     * Waits for the free space in the queue and adds the task
+     *
+     * @throws IllegalStateException if the queue is already closed
+     */
+    void put(Runnable task) {
+        // adding holds the shared lock, so the closing waits for all concurrent adding and no task is lost after STOP
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Handoff queue is closed");
+            }
+            enqueue(task);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Waits for the execution of all added tasks and stops the thread
+     */
+    void close() {
+        closeLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+
+        enqueue(STOP);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueue(Runnable task) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(task);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Runnable task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == STOP) {
+                // STOP is always the last task, nothing can be added after the closing
+                return;
+            }
+            execute(task);
+        }
+    }
+
+    private void execute(Runnable task) {
+        // one failed task must not stop the handoff of all next events
+        try {
+            task.run();
+        } catch (RuntimeException ex) {
+            logger.error("Handoff task failed", ex);
+        }
+    }
+}
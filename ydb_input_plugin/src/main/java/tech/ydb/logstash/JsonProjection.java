@@ -0,0 +1,138 @@
+package tech.ydb.logstash;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Included and excluded fields of JSON messages. Paths are field names or nested references like {@code [a][b]},
+ * they address fields of objects, arrays are always taken as a whole. Paths are kept as trees, so the parser checks
+ * every field of the message by one lookup in the node of its parent.
+ */
+final class JsonProjection {
+    private static final Pattern PATH_PART = Pattern.compile("\\[([^\\[\\]]+)\\]");
+
+    /**
+     * Node of the tree of paths, the node with {@code all} flag matches the whole subtree
+     */
+    static final class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private boolean all = false;
+
+        private void add(List<String> path) {
+            Node node = this;
+            for (String name : path) {
+                if (node.all) {
+                    return;
+                }
+                node = node.children.computeIfAbsent(name, n -> new Node());
+            }
+            node.all = true;
+            node.children.clear();
+        }
+    }
+
+    /**
+     * Marker of the field which is not read at all
+     */
+    static final Node SKIP = new Node();
+
+    private final Node include;
+    private final Node exclude;
+
+    private JsonProjection(Node include, Node exclude) {
+        this.include = include;
+        this.exclude = exclude;
+    }
+
+    /**
+     * @return projection or null if all fields are taken
+     */
+    static JsonProjection of(Collection<?> includeFields, Collection<?> excludeFields) {
+        Node include = parsePaths(includeFields);
+        Node exclude = parsePaths(excludeFields);
+        if (include == null && exclude == null) {
+            return null;
+        }
+        return new JsonProjection(include, exclude);
+    }
+
+    /**
+     * Include node of the top-level object, null means all fields are included
+     */
+    Node include() {
+        return include;
+    }
+
+    /**
+     * Exclude node of the top-level object, null means no one field is excluded
+     */
+    Node exclude() {
+        return exclude;
+    }
+
+    /**
+     * @return include node of the field, null if the whole field is included or {@link #SKIP}
+     */
+    static Node includeChild(Node include, String name) {
+        if (include == null) {
+            return null;
+        }
+        Node child = include.children.get(name);
+        if (child == null) {
+            return SKIP;
+        }
+        return child.all ? null : child;
+    }
+
+    /**
+     * @return exclude node of the field, null if no one subfield is excluded or {@link #SKIP}
+     */
+    static Node excludeChild(Node exclude, String name) {
+        if (exclude == null) {
+            return null;
+        }
+        Node child = exclude.children.get(name);
+        if (child == null) {
+            return null;
+        }
+        return child.all ? SKIP : child;
+    }
+
+    private static Node parsePaths(Collection<?> paths) {
+        if (paths == null || paths.isEmpty()) {
+            return null;
+        }
+        Node root = new Node();
+        for (Object path : paths) {
+            root.add(parsePath(String.valueOf(path)));
+        }
+        return root;
+    }
+
+    private static List<String> parsePath(String path) {
+        List<String> names = new ArrayList<>();
+        if (!path.startsWith("[")) {
+            if (path.isEmpty() || path.contains("[") || path.contains("]")) {
+                throw new IllegalStateException("Invalid field path " + path);
+            }
+            names.add(path);
+            return names;
+        }
+
+        Matcher matcher = PATH_PART.matcher(path);
+        int position = 0;
+        while (position < path.length() && matcher.find(position) && matcher.start() == position) {
+            names.add(matcher.group(1));
+            position = matcher.end();
+        }
+        if (position != path.length()) {
+            throw new IllegalStateException("Invalid field path " + path);
+        }
+        return names;
+    }
+}
@@ -1,110 +1,475 @@
 package tech.ydb.logstash;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
-import java.util.function.Function;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import co.elastic.logstash.api.CounterMetric;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import org.jcodings.specific.ASCIIEncoding;
+import org.jruby.Ruby;
+import org.jruby.RubyString;
+import org.jruby.util.ByteList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import tech.ydb.topic.read.Message;
 import tech.ydb.topic.read.events.AbstractReadEventHandler;
 import tech.ydb.topic.read.events.DataReceivedEvent;
-
-import static com.fasterxml.jackson.databind.node.JsonNodeType.NULL;
-import static com.fasterxml.jackson.databind.node.JsonNodeType.POJO;
-import static com.fasterxml.jackson.databind.node.JsonNodeType.STRING;
+import tech.ydb.topic.read.events.StopPartitionSessionEvent;
 
 public class MessageHandler extends AbstractReadEventHandler {
+    // JsonFactory is thread-safe and reuses its internal buffers, so one instance serves all handlers
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final int MAX_INFLIGHT_BATCHES_PER_THREAD = 4;
+
+    // events of multi-topic reader are tagged with [@metadata][topic]
+    static final String TOPIC_METADATA = "@metadata";
+
     private final Logger logger = LoggerFactory.getLogger(MessageHandler.class);
     private final Consumer<Map<String, Object>> consumer;
-    private final Function<Message, Map<String, Object>> messageProcessor;
+    private final TopicDecoder defaultDecoder;
+    // decoders of topics by the full paths of the settings and by the paths of partition sessions
+    private final Map<String, TopicDecoder> topicDecoders;
+    private final ConcurrentHashMap<String, TopicDecoder> sessionDecoders = new ConcurrentHashMap<>();
+    // events go to the consumer through the handoff queue, null means the direct call in the thread of the reader
+    private final HandoffQueue handoff;
+    // included and excluded fields of JSON messages, null means all fields
+    private final JsonProjection projection;
+
+    private final PluginMetrics metrics;
+    private final CounterMetric messagesCount;
+    private final CounterMetric bytesCount;
+    private final CounterMetric eventsCount;
+    private final CounterMetric decodeErrors;
+    private final CounterMetric commitsCount;
+    private final CounterMetric commitErrors;
+    private final PluginMetrics.Histogram commitLatency;
 
-    public MessageHandler(Consumer<Map<String, Object>> consumer, String schema) {
+    private final int commitBatchSize;
+    private final List<DataReceivedEvent> pendingCommits = new ArrayList<>();
+    private int pendingMessages = 0;
+
+    // Decoding lanes, one per partition session. Each lane is the tail of the chain of its received batches
+    private final ExecutorService decodePool;
+    private final Semaphore decodeInflight;
+    private final ConcurrentHashMap<Long, CompletableFuture<Void>> decodeLanes = new ConcurrentHashMap<>();
+
+    /**
+     * @param consumer consumer of decoded events
+     * @param schema schema of messages: JSON, TEXT (UTF-8 string in the message field), LINES (TEXT event per every
+     *               line of the message), BYTES (not decoded bytes in the message field), otherwise the base64 field
+     * @param commitBatchSize minimal count of messages to commit at once, 0 means commit of every received batch
+     * @param decodeThreads count of decoding threads, 0 means decoding in the thread of the reader
+     * @param ndjsonBatches true if every message contains a few newline-delimited events
+     */
+    public MessageHandler(Consumer<Map<String, Object>> consumer, String schema, int commitBatchSize,
+            int decodeThreads, boolean ndjsonBatches) {
+        this(consumer, schema, null, Collections.emptyMap(), commitBatchSize, decodeThreads, ndjsonBatches, null,
+                null, PluginMetrics.of(null, null));
+    }
+
+    /**
+     * @param database path of the database, relative topic paths are resolved against it
+     * @param topicSchemas schemas of messages by topic paths, if it isn't empty every event is tagged with the path
+     *                     of its topic in the {@link #TOPIC_METADATA} field
+     * @param handoff queue of events between the reader and the consumer, null means direct calls of the consumer
+     * @param projection fields of JSON messages to decode, null means all fields
+     */
+    MessageHandler(Consumer<Map<String, Object>> consumer, String schema, String database,
+            Map<String, String> topicSchemas, int commitBatchSize, int decodeThreads, boolean ndjsonBatches,
+            HandoffQueue handoff, JsonProjection projection, PluginMetrics metrics) {
         this.consumer = consumer;
+        this.handoff = handoff;
+        this.projection = projection;
+        this.metrics = metrics;
+        this.messagesCount = metrics.counter("messages_received");
+        this.bytesCount = metrics.counter("bytes_received");
+        this.eventsCount = metrics.counter("events");
+        this.decodeErrors = metrics.counter("decode_errors");
+        this.commitsCount = metrics.counter("commits");
+        this.commitErrors = metrics.counter("commit_errors");
+        this.commitLatency = metrics.histogram("commit_latency");
+        this.commitBatchSize = commitBatchSize;
+
+        if (decodeThreads > 0) {
+            AtomicInteger threadIdx = new AtomicInteger();
+            this.decodePool = Executors.newFixedThreadPool(decodeThreads, r -> {
+                Thread thread = new Thread(r, "ydb-topic-decoder-" + threadIdx.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Limits the count of received but not decoded batches, the reader is blocked when the limit is reached
+            this.decodeInflight = new Semaphore(decodeThreads * MAX_INFLIGHT_BATCHES_PER_THREAD);
+        } else {
+            this.decodePool = null;
+            this.decodeInflight = null;
+        }
+
+        this.defaultDecoder = new TopicDecoder(messageDecoder(schema), ndjsonBatches || "LINES".equals(schema), null);
+        this.topicDecoders = new HashMap<>();
+        for (Map.Entry<String, String> topic : topicSchemas.entrySet()) {
+            String topicSchema = topic.getValue() != null ? topic.getValue() : schema;
+            // partition sessions have full paths, relative paths of the settings are resolved by the server against
+            // the database
+            String fullPath = topic.getKey().startsWith("/") ? topic.getKey() : database + "/" + topic.getKey();
+            topicDecoders.put(fullPath, new TopicDecoder(messageDecoder(topicSchema),
+                    ndjsonBatches || "LINES".equals(topicSchema), topic.getKey()));
+        }
+    }
+
+    /**
+     * Decoding of the part of the message to one event
+     */
+    private interface MessageDecoder {
+        Map<String, Object> process(byte[] data, int offset, int length);
+    }
+
+    /**
+     * Decoding of messages of one topic
+     */
+    private static final class TopicDecoder {
+        private final MessageDecoder decoder;
+        // every message is split by lines, every line is decoded to own event
+        private final boolean splitLines;
+        // path of the topic for tagging of events, null if events are not tagged
+        private final String topicPath;
+
+        TopicDecoder(MessageDecoder decoder, boolean splitLines, String topicPath) {
+            this.decoder = decoder;
+            this.splitLines = splitLines;
+            this.topicPath = topicPath;
+        }
+    }
+
+    /**
+     * Decoder is chosen once, so messages are not checked for the format of the payload
+     */
+    private MessageDecoder messageDecoder(String schema) {
+        switch (schema != null ? schema : "") {
+            case "JSON":
+                return this::processJsonMessage;
+            case "TEXT":
+            case "LINES":
+                return MessageHandler::processTextMessage;
+            case "BYTES":
+                return MessageHandler::processBytesMessage;
+            default:
+                return this::processNonJsonMessage;
+        }
+    }
+
+    private TopicDecoder topicDecoder(String sessionPath) {
+        if (topicDecoders.isEmpty() || sessionPath == null) {
+            return defaultDecoder;
+        }
+        return sessionDecoders.computeIfAbsent(sessionPath, path -> {
+            TopicDecoder decoder = topicDecoders.get(path);
+            if (decoder != null) {
+                return decoder;
+            }
+            logger.warn("Messages of unknown topic {} are decoded with the default schema", path);
+            return defaultDecoder;
+        });
+    }
+
+    Map<String, Object> processMessage(byte[] data) {
+        return defaultDecoder.decoder.process(data, 0, data.length);
+    }
 
-        if ("JSON".equals(schema)) {
-            messageProcessor = this::processJsonMessage;
+    private void emit(TopicDecoder topic, Map<String, Object> map) {
+        if (topic.topicPath != null) {
+            Map<String, Object> tagged = map instanceof HashMap ? map : new HashMap<>(map);
+            tagged.put(TOPIC_METADATA, Collections.singletonMap("topic", topic.topicPath));
+            map = tagged;
+        }
+        if (handoff != null) {
+            Map<String, Object> event = map;
+            handoff.put(() -> consumer.accept(event));
         } else {
-            messageProcessor = this::processNonJsonMessage;
+            consumer.accept(map);
+        }
+        eventsCount.increment();
+    }
+
+    private void processFrame(TopicDecoder topic, byte[] data) {
+        int lineStart = 0;
+        for (int idx = 0; idx <= data.length; idx++) {
+            if (idx < data.length && data[idx] != '\n') {
+                continue;
+            }
+            // lines may be terminated by CRLF, empty lines are skipped
+            int lineEnd = idx > lineStart && data[idx - 1] == '\r' ? idx - 1 : idx;
+            if (lineEnd > lineStart) {
+                Map<String, Object> map = topic.decoder.process(data, lineStart, lineEnd - lineStart);
+                if (map != null) {
+                    emit(topic, map);
+                }
+            }
+            lineStart = idx + 1;
         }
     }
 
     @Override
     public void onMessages(DataReceivedEvent event) {
+        if (decodePool == null) {
+            handleEvent(event);
+            return;
+        }
+
+        decodeInflight.acquireUninterruptibly();
+        long sessionId = event.getPartitionSession().getId();
+        CompletableFuture<Void> next;
+        try {
+            next = decodeLanes.compute(sessionId, (id, tail) -> {
+                CompletableFuture<Void> prev = tail != null ? tail : CompletableFuture.completedFuture(null);
+                return prev.thenRunAsync(() -> decodeEvent(event), decodePool);
+            });
+        } catch (RejectedExecutionException ex) {
+            // the handler is already closed, messages aren't committed and will be read again
+            decodeInflight.release();
+            logger.warn("Cannot decode {} messages of partition session {}, the handler is closed",
+                    event.getMessages().size(), sessionId);
+            return;
+        }
+        // the callback runs at once in this thread if the decoding is already finished, so it must not be registered
+        // inside of compute(), the map doesn't allow the recursive update of the same key
+        next.whenComplete((res, th) -> {
+            decodeInflight.release();
+            decodeLanes.remove(sessionId, next);
+        });
+    }
+
+    private void decodeEvent(DataReceivedEvent event) {
+        // lane must not be broken by one failed batch, otherwise all next batches of the partition are lost
+        try {
+            handleEvent(event);
+        } catch (RuntimeException ex) {
+            logger.error("Cannot process {} messages of partition session {}", event.getMessages().size(),
+                    event.getPartitionSession().getId(), ex);
+        }
+    }
+
+    private void handleEvent(DataReceivedEvent event) {
+        TopicDecoder topic = topicDecoder(event.getPartitionSession().getPath());
+        Message last = null;
         for (Message message : event.getMessages()) {
             logger.debug("Message received. SeqNo={}, offset={}", message.getSeqNo(), message.getOffset());
-            Map<String, Object> map = messageProcessor.apply(message);
+            last = message;
+            messagesCount.increment();
+            bytesCount.increment(message.getData().length);
+            if (topic.splitLines) {
+                processFrame(topic, message.getData());
+                continue;
+            }
+
+            Map<String, Object> map = topic.decoder.process(message.getData(), 0, message.getData().length);
             if (map != null) {
-                consumer.accept(map);
+                emit(topic, map);
+            }
+        }
+
+        if (last != null && last.getWrittenAt() != null) {
+            // lag of the last read message behind its writing to the topic
+            metrics.gauge("read_lag_ms", Duration.between(last.getWrittenAt(), Instant.now()).toMillis());
+        }
+
+        if (handoff != null) {
+            // messages are committed only after the consumer takes all their events from the queue
+            handoff.put(() -> onConsumed(event));
+            metrics.gauge("handoff_queue_size", handoff.size());
+        } else {
+            onConsumed(event);
+        }
+    }
+
+    private void onConsumed(DataReceivedEvent event) {
+        // all messages of the event are already handed to the consumer
+        if (commitBatchSize <= 0) {
+            commitAsync(event);
+            return;
+        }
+
+        List<DataReceivedEvent> readyToCommit = null;
+        synchronized (pendingCommits) {
+            pendingCommits.add(event);
+            pendingMessages += event.getMessages().size();
+            if (pendingMessages >= commitBatchSize) {
+                readyToCommit = takePendingCommits();
             }
-            message.commit().join();
+        }
+
+        if (readyToCommit != null) {
+            readyToCommit.forEach(this::commitAsync);
         }
     }
 
-    private Map<String, Object> processJsonMessage(Message message) {
-        try {
-            ObjectMapper mapper = new ObjectMapper();
-            Map<String, Object> map = parseJson(mapper, message.getData());
-            if (map == null) {
-                return processNonJsonMessage(message);
+    @Override
+    public void onStopPartitionSession(StopPartitionSessionEvent event) {
+        // commit everything that was read before the partition is taken away
+        CompletableFuture<Void> lane = decodeLanes.get(event.getPartitionSessionId());
+        if (lane != null) {
+            lane.join();
+        }
+        if (handoff != null) {
+            // the reader isn't blocked until the consumer takes all events of the partition
+            handoff.put(() -> {
+                flushCommits();
+                event.confirm();
+            });
+            return;
+        }
+        flushCommits();
+        event.confirm();
+    }
+
+    /**
+     * Waits for decoding and handoff of all received messages, commits them and stops the decoding threads. Must be
+     * called after the shutdown of the reader, so no new messages are received
+     */
+    public void close() {
+        if (decodePool != null) {
+            decodeLanes.values().forEach(CompletableFuture::join);
+            decodePool.shutdown();
+        }
+        if (handoff != null) {
+            handoff.close();
+        }
+        flushCommits();
+    }
+
+    public void flushCommits() {
+        List<DataReceivedEvent> readyToCommit;
+        synchronized (pendingCommits) {
+            readyToCommit = takePendingCommits();
+        }
+        readyToCommit.forEach(this::commitAsync);
+    }
+
+    private List<DataReceivedEvent> takePendingCommits() {
+        List<DataReceivedEvent> events = new ArrayList<>(pendingCommits);
+        pendingCommits.clear();
+        pendingMessages = 0;
+        return events;
+    }
+
+    private void commitAsync(DataReceivedEvent event) {
+        long startNanos = System.nanoTime();
+        event.commit().whenComplete((res, th) -> {
+            commitLatency.record(System.nanoTime() - startNanos);
+            commitsCount.increment();
+            if (th != null) {
+                commitErrors.increment();
+                logger.warn("Cannot commit {} messages of partition session {}", event.getMessages().size(),
+                        event.getPartitionSession().getId(), th);
+            }
+        });
+    }
+
+    private Map<String, Object> processJsonMessage(byte[] data, int offset, int length) {
+        try (JsonParser parser = JSON_FACTORY.createParser(data, offset, length)) {
+            JsonToken first = parser.nextToken();
+            if (first != JsonToken.START_OBJECT) {
+                // only valid JSON values are passed as raw messages, invalid messages are ignored
+                if (first != null) {
+                    parser.skipChildren();
+                    parser.finishToken();
+                }
+                return processNonJsonMessage(data, offset, length);
             }
-            return map;
+            return parseJsonObject(parser);
         } catch (IOException e) {
+            decodeErrors.increment();
             logger.error("Error parsing JSON: {}", e.getMessage());
             return null;
         }
     }
 
-    private Map<String, Object> processNonJsonMessage(Message message) {
-        return Collections.singletonMap("base64", Base64.getEncoder().encodeToString(message.getData()));
+    private static Map<String, Object> processTextMessage(byte[] data, int offset, int length) {
+        return Collections.singletonMap("message", new String(data, offset, length, StandardCharsets.UTF_8));
     }
 
-    private Map<String, Object> parseJson(ObjectMapper mapper, byte[] json) throws IOException {
-        JsonNode jsonNode = mapper.readTree(json);
-        if (!jsonNode.isObject()) {
-            return null;
-        }
+    private static Map<String, Object> processBytesMessage(byte[] data, int offset, int length) {
+        // Logstash events can't keep byte[] values, so the message is wrapped without copying to the binary string
+        ByteList bytes = new ByteList(data, offset, length, ASCIIEncoding.INSTANCE, false);
+        return Collections.singletonMap("message", RubyString.newStringNoCopy(Ruby.getGlobalRuntime(), bytes));
+    }
 
+    private Map<String, Object> processNonJsonMessage(byte[] data, int offset, int length) {
+        byte[] bytes = offset == 0 && length == data.length ? data : Arrays.copyOfRange(data, offset, offset + length);
+        return Collections.singletonMap("base64", Base64.getEncoder().encodeToString(bytes));
+    }
+
+    private Map<String, Object> parseJsonObject(JsonParser parser) throws IOException {
         Map<String, Object> map = new HashMap<>();
-        Iterator<Map.Entry<String, JsonNode>> iter = jsonNode.fields();
-        while (iter.hasNext()) {
-            Map.Entry<String, JsonNode> ev = iter.next();
-            String name = ev.getKey();
-            JsonNode node = ev.getValue();
-            switch (node.getNodeType()) {
-                case STRING:
-                    map.put(name, node.asText());
+        ByteArrayBuilder nestedBuffer = null;
+        JsonProjection.Node include = projection != null ? projection.include() : null;
+        JsonProjection.Node exclude = projection != null ? projection.exclude() : null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            JsonProjection.Node fieldInclude = JsonProjection.includeChild(include, name);
+            JsonProjection.Node fieldExclude = JsonProjection.excludeChild(exclude, name);
+            if (isSkipped(token, fieldInclude, fieldExclude)) {
+                parser.skipChildren();
+                continue;
+            }
+
+            switch (token) {
+                case VALUE_STRING:
+                    map.put(name, parser.getText());
                     break;
-                case BINARY:
-                    map.put(name, node.binaryValue());
+                case VALUE_EMBEDDED_OBJECT:
+                    map.put(name, parser.getBinaryValue());
                     break;
-                case BOOLEAN:
-                    map.put(name, node.booleanValue());
+                case VALUE_TRUE:
+                case VALUE_FALSE:
+                    map.put(name, parser.getBooleanValue());
                     break;
-                case NUMBER:
-                    if (node.isLong()) {
-                        map.put(name, node.longValue());
-                    } else if (node.isDouble()) {
-                        map.put(name, node.doubleValue());
+                case VALUE_NUMBER_INT:
+                    if (parser.getNumberType() == JsonParser.NumberType.LONG) {
+                        map.put(name, parser.getLongValue());
                     } else {
-                        map.put(name, node.decimalValue());
+                        map.put(name, parser.getDecimalValue());
                     }
                     break;
-                case OBJECT:
-                case ARRAY:
-                case POJO:
-                    map.put(name, mapper.writeValueAsString(node));
+                case VALUE_NUMBER_FLOAT:
+                    map.put(name, parser.getDoubleValue());
+                    break;
+                case START_OBJECT:
+                case START_ARRAY:
+                    // nested values are copied token by token in compact form, without building of JSON tree
+                    if (nestedBuffer == null) {
+                        nestedBuffer = new ByteArrayBuilder();
+                    }
+                    if (token == JsonToken.START_OBJECT && (fieldInclude != null || fieldExclude != null)) {
+                        map.put(name, copyProjectedObject(parser, nestedBuffer, fieldInclude, fieldExclude));
+                    } else {
+                        map.put(name, copyNestedValue(parser, nestedBuffer));
+                    }
                     break;
-                case NULL:
-                case MISSING:
+                case VALUE_NULL:
                 default:
                     break;
             }
@@ -112,4 +477,52 @@ public class MessageHandler extends AbstractReadEventHandler {
 
         return map;
     }
+
+    private static String copyNestedValue(JsonParser parser, ByteArrayBuilder buffer) throws IOException {
+        buffer.reset();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(buffer)) {
+            generator.copyCurrentStructure(parser);
+        }
+        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Unwanted values are skipped by the parser without decoding, the path into not object value matches nothing
+     */
+    private static boolean isSkipped(JsonToken token, JsonProjection.Node include, JsonProjection.Node exclude) {
+        return include == JsonProjection.SKIP || exclude == JsonProjection.SKIP
+                || (include != null && token != JsonToken.START_OBJECT);
+    }
+
+    private static String copyProjectedObject(JsonParser parser, ByteArrayBuilder buffer,
+            JsonProjection.Node include, JsonProjection.Node exclude) throws IOException {
+        buffer.reset();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(buffer)) {
+            writeProjectedObject(parser, generator, include, exclude);
+        }
+        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void writeProjectedObject(JsonParser parser, JsonGenerator generator,
+            JsonProjection.Node include, JsonProjection.Node exclude) throws IOException {
+        generator.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            JsonProjection.Node fieldInclude = JsonProjection.includeChild(include, name);
+            JsonProjection.Node fieldExclude = JsonProjection.excludeChild(exclude, name);
+            if (isSkipped(token, fieldInclude, fieldExclude)) {
+                parser.skipChildren();
+                continue;
+            }
+
+            generator.writeFieldName(name);
+            if (token == JsonToken.START_OBJECT && (fieldInclude != null || fieldExclude != null)) {
+                writeProjectedObject(parser, generator, fieldInclude, fieldExclude);
+            } else {
+                generator.copyCurrentStructure(parser);
+            }
+        }
+        generator.writeEndObject();
+    }
 }
@@ -0,0 +1,93 @@
+package tech.ydb.logstash;
+
+import java.util.concurrent.TimeUnit;
+
+import co.elastic.logstash.api.Context;
+import co.elastic.logstash.api.CounterMetric;
+import co.elastic.logstash.api.NamespacedMetric;
+import co.elastic.logstash.api.Plugin;
+
+/**
+ * Metrics of the plugin in the namespace of the plugin in Logstash metric API. Without the context (for example in
+ * tests) all metrics are ignored.
+ */
+final class PluginMetrics {
+    private static final CounterMetric NOP_COUNTER = new CounterMetric() {
+        @Override
+        public void increment() {
+            // nothing
+        }
+
+        @Override
+        public void increment(long delta) {
+            // nothing
+        }
+
+        @Override
+        public long getValue() {
+            return 0;
+        }
+
+        @Override
+        public void reset() {
+            // nothing
+        }
+    };
+
+    // upper bounds of latency buckets in milliseconds
+    private static final long[] LATENCY_BUCKETS = new long[] {10, 50, 100, 500, 1000, 5000};
+
+    /**
+     * Latency distribution, Logstash metric API doesn't have histograms, so every bucket is a separate counter
+     * {@code le_<bound>ms} and the total time is reported as the timer metric {@code <name>_total}
+     */
+    final class Histogram {
+        private final String name;
+        private final CounterMetric[] buckets = new CounterMetric[LATENCY_BUCKETS.length + 1];
+
+        private Histogram(String name) {
+            this.name = name;
+            NamespacedMetric ns = metric != null ? metric.namespace(name) : null;
+            for (int idx = 0; idx < buckets.length; idx++) {
+                String bucket = idx < LATENCY_BUCKETS.length ? "le_" + LATENCY_BUCKETS[idx] + "ms" : "le_inf";
+                buckets[idx] = ns != null ? ns.counter(bucket) : NOP_COUNTER;
+            }
+        }
+
+        void record(long nanos) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int idx = 0;
+            while (idx < LATENCY_BUCKETS.length && millis > LATENCY_BUCKETS[idx]) {
+                idx++;
+            }
+            buckets[idx].increment();
+            if (metric != null) {
+                metric.reportTime(name + "_total", millis);
+            }
+        }
+    }
+
+    private final NamespacedMetric metric;
+
+    private PluginMetrics(NamespacedMetric metric) {
+        this.metric = metric;
+    }
+
+    static PluginMetrics of(Context ctx, Plugin plugin) {
+        return new PluginMetrics(ctx != null ? ctx.getMetric(plugin) : null);
+    }
+
+    CounterMetric counter(String name) {
+        return metric != null ? metric.counter(name) : NOP_COUNTER;
+    }
+
+    Histogram histogram(String name) {
+        return new Histogram(name);
+    }
+
+    void gauge(String name, Object value) {
+        if (metric != null) {
+            metric.gauge(name, value);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package tech.ydb.logstash;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import tech.ydb.core.grpc.GrpcTransport;
+import tech.ydb.topic.TopicClient;
+
+/**
+ * Registry of topic clients shared by all plugins with the same connection settings in one JVM. Every plugin gets
+ * own lease of the client, the client and its transport are closed when the last lease is closed.
+ */
+final class TopicClientRegistry {
+    private static final Map<String, Entry> ENTRIES = new HashMap<>();
+
+    private TopicClientRegistry() { }
+
+    static Lease acquire(String key, Supplier<GrpcTransport> transportFactory,
+            Function<GrpcTransport, TopicClient> clientFactory) {
+        Entry entry;
+        boolean created = false;
+        synchronized (ENTRIES) {
+            entry = ENTRIES.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                ENTRIES.put(key, entry);
+                created = true;
+            }
+            entry.refs++;
+        }
+
+        // the transport connects outside of the lock, so only plugins with the same key wait for it
+        if (created) {
+            try {
+                entry.connection.complete(connect(transportFactory, clientFactory));
+            } catch (RuntimeException ex) {
+                synchronized (ENTRIES) {
+                    // the next plugin creates the connection again
+                    ENTRIES.remove(key, entry);
+                }
+                entry.connection.completeExceptionally(ex);
+            }
+        }
+
+        Connection connection;
+        try {
+            connection = entry.connection.join();
+        } catch (CompletionException ex) {
+            release(entry);
+            throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : ex;
+        }
+        return new Lease(entry, connection);
+    }
+
+    private static Connection connect(Supplier<GrpcTransport> transportFactory,
+            Function<GrpcTransport, TopicClient> clientFactory) {
+        GrpcTransport transport = transportFactory.get();
+        try {
+            return new Connection(transport, clientFactory.apply(transport));
+        } catch (RuntimeException ex) {
+            transport.close();
+            throw ex;
+        }
+    }
+
+    private static void release(Entry entry) {
+        synchronized (ENTRIES) {
+            entry.refs--;
+            if (entry.refs > 0) {
+                return;
+            }
+            ENTRIES.remove(entry.key, entry);
+        }
+        if (!entry.connection.isCompletedExceptionally()) {
+            Connection connection = entry.connection.join();
+            connection.client.close();
+            connection.transport.close();
+        }
+    }
+
+    private static final class Connection {
+        private final GrpcTransport transport;
+        private final TopicClient client;
+
+        Connection(GrpcTransport transport, TopicClient client) {
+            this.transport = transport;
+            this.client = client;
+        }
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final CompletableFuture<Connection> connection = new CompletableFuture<>();
+        private int refs = 0;
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    static final class Lease implements AutoCloseable {
+        private final Entry entry;
+        private final Connection connection;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private Lease(Entry entry, Connection connection) {
+            this.entry = entry;
+            this.connection = connection;
+        }
+
+        public TopicClient client() {
+            return connection.client;
+        }
+
+        public String database() {
+            return connection.transport.getDatabase();
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release(entry);
+            }
+        }
+    }
+}
@@ -3,15 +3,27 @@ package tech.ydb.logstash;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import co.elastic.logstash.api.Configuration;
 import co.elastic.logstash.api.Context;
+import co.elastic.logstash.api.CounterMetric;
 import co.elastic.logstash.api.Input;
 import co.elastic.logstash.api.LogstashPlugin;
 import co.elastic.logstash.api.PluginConfigSpec;
@@ -38,36 +50,103 @@ public class YdbTopic implements Input {
     static final PluginConfigSpec<String> TOKEN_FILE = PluginConfigSpec.stringSetting("token_file");
     static final PluginConfigSpec<Boolean> USE_METADATA = PluginConfigSpec.booleanSetting("use_metadata");
 
-    static final PluginConfigSpec<String> TOPIC_PATH = PluginConfigSpec.requiredStringSetting("topic_path");
+    static final PluginConfigSpec<String> TOPIC_PATH = PluginConfigSpec.stringSetting("topic_path");
+    static final PluginConfigSpec<List<Object>> TOPICS = PluginConfigSpec.arraySetting("topics");
     static final PluginConfigSpec<String> CONSUMER_NAME = PluginConfigSpec.requiredStringSetting("consumer_name");
     static final PluginConfigSpec<String> SCHEMA = PluginConfigSpec.stringSetting("schema");
+    static final PluginConfigSpec<Long> COMMIT_BATCH_SIZE = PluginConfigSpec.numSetting("commit_batch_size", 0);
+    static final PluginConfigSpec<Long> COMMIT_INTERVAL_MS = PluginConfigSpec.numSetting("commit_interval_ms", 0);
+    static final PluginConfigSpec<Long> DECODE_THREADS = PluginConfigSpec.numSetting("decode_threads", 0);
+    static final PluginConfigSpec<String> BATCH_FORMAT = PluginConfigSpec.stringSetting("batch_format", "none");
+    static final PluginConfigSpec<Long> MAX_MEMORY_USAGE = PluginConfigSpec.numSetting("max_memory_usage", 0);
+    static final PluginConfigSpec<Long> HANDOFF_QUEUE_SIZE = PluginConfigSpec.numSetting("handoff_queue_size", 0);
+    static final PluginConfigSpec<Long> DECOMPRESSION_THREADS = PluginConfigSpec.numSetting(
+            "decompression_threads", 0);
+    static final PluginConfigSpec<List<Object>> INCLUDE_FIELDS = PluginConfigSpec.arraySetting("include_fields");
+    static final PluginConfigSpec<List<Object>> EXCLUDE_FIELDS = PluginConfigSpec.arraySetting("exclude_fields");
 
-    private final String topicPath;
+    /**
+     * One topic of the reader, entries of topics setting are topic paths or hashes with path, schema and read_from
+     */
+    private static final class TopicConfig {
+        private final String path;
+        private final String schema;
+        private final Instant readFrom;
+
+        TopicConfig(String path, String schema, Instant readFrom) {
+            this.path = path;
+            this.schema = schema;
+            this.readFrom = readFrom;
+        }
+    }
+
+    private final List<TopicConfig> topics;
+    // events are tagged with the source topic only when the reader has the list of topics
+    private final boolean tagTopics;
     private final String id;
     private final String consumerName;
     private final String schema;
+    private final long commitBatchSize;
+    private final long commitIntervalMs;
+    private final int decodeThreads;
+    private final boolean ndjsonBatches;
+    private final long maxMemoryUsage;
+    private final int handoffQueueSize;
+    private final int decompressionThreads;
+    private final JsonProjection projection;
 
-    private final TopicClient topicClient;
-    private final GrpcTransport transport;
+    private final TopicClientRegistry.Lease connection;
+    private final PluginMetrics metrics;
     private final CountDownLatch stopped = new CountDownLatch(1);
 
     private AsyncReader reader;
+    private MessageHandler handler;
+    private ScheduledExecutorService commitScheduler;
+    private ExecutorService decompressionPool;
 
     public YdbTopic(String id, Configuration config, Context context) {
         this.id = id;
 
         String connectionString = config.get(CONNECTION);
-        AuthProvider authProvider = createAuthProvider(config);
 
-        this.topicPath = config.get(TOPIC_PATH);
+        String topicPath = config.get(TOPIC_PATH);
+        List<Object> topicsList = config.get(TOPICS);
+        boolean hasTopicsList = topicsList != null && !topicsList.isEmpty();
+        if ((topicPath == null) == !hasTopicsList) {
+            throw new IllegalStateException("Exactly one of " + TOPIC_PATH.name() + " or " + TOPICS.name()
+                    + " must be set");
+        }
+        this.topics = hasTopicsList ? parseTopics(topicsList)
+                : Collections.singletonList(new TopicConfig(topicPath, null, null));
+        this.tagTopics = hasTopicsList;
+
         this.consumerName = config.get(CONSUMER_NAME);
         this.schema = config.get(SCHEMA);
+        this.commitBatchSize = config.get(COMMIT_BATCH_SIZE);
+        this.commitIntervalMs = config.get(COMMIT_INTERVAL_MS);
+        this.decodeThreads = config.get(DECODE_THREADS).intValue();
+        this.ndjsonBatches = parseBatchFormat(config.get(BATCH_FORMAT));
+        this.maxMemoryUsage = config.get(MAX_MEMORY_USAGE);
+        long handoffSize = config.get(HANDOFF_QUEUE_SIZE);
+        if (handoffSize < 0 || handoffSize > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Invalid " + HANDOFF_QUEUE_SIZE.name() + " value " + handoffSize);
+        }
+        this.handoffQueueSize = (int) handoffSize;
+        long decompression = config.get(DECOMPRESSION_THREADS);
+        if (decompression < 0 || decompression > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Invalid " + DECOMPRESSION_THREADS.name() + " value " + decompression);
+        }
+        this.decompressionThreads = (int) decompression;
+        this.projection = JsonProjection.of(config.get(INCLUDE_FIELDS), config.get(EXCLUDE_FIELDS));
+        this.metrics = PluginMetrics.of(context, this);
 
-        this.transport = GrpcTransport.forConnectionString(connectionString)
-                .withAuthProvider(authProvider)
-                .build();
-        this.topicClient = TopicClient.newClient(transport).build();
-
+        // plugins with the same connection settings share one transport and one topic client
+        this.connection = TopicClientRegistry.acquire(connectionKey(config),
+                () -> GrpcTransport.forConnectionString(connectionString)
+                        .withAuthProvider(createAuthProvider(config))
+                        .build(),
+                transport -> TopicClient.newClient(transport).build()
+        );
     }
 
     @Override
@@ -77,24 +156,90 @@ public class YdbTopic implements Input {
 
     @Override
     public void start(Consumer<Map<String, Object>> consumer) {
+        // with commit interval only messages are accumulated until the next tick of the timer
+        int batchSize = (int) Math.min(Integer.MAX_VALUE, commitBatchSize);
+        if (batchSize <= 0 && commitIntervalMs > 0) {
+            batchSize = Integer.MAX_VALUE;
+        }
+        Map<String, String> topicSchemas = new LinkedHashMap<>();
+        if (tagTopics) {
+            for (TopicConfig topic : topics) {
+                topicSchemas.put(topic.path, topic.schema);
+            }
+        }
+        HandoffQueue handoff = handoffQueueSize > 0
+                ? new HandoffQueue("ydb-topic-" + id + "-handoff", handoffQueueSize)
+                : null;
+        handler = new MessageHandler(consumer, schema, connection.database(), topicSchemas, batchSize, decodeThreads,
+                ndjsonBatches, handoff, projection, metrics);
+
+        if (commitIntervalMs > 0) {
+            commitScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "ydb-topic-" + id + "-commits");
+                thread.setDaemon(true);
+                return thread;
+            });
+            commitScheduler.scheduleWithFixedDelay(handler::flushCommits,
+                    commitIntervalMs, commitIntervalMs, TimeUnit.MILLISECONDS);
+        }
+
         ReadEventHandlersSettings handlerSettings = ReadEventHandlersSettings.newBuilder()
-                .setEventHandler(new MessageHandler(consumer, schema))
+                .setEventHandler(handler)
                 .build();
 
-        ReaderSettings settings = ReaderSettings.newBuilder()
-                .setConsumerName(consumerName)
-                .addTopic(TopicReadSettings.newBuilder().setPath(topicPath).build())
-                .build();
+        // all topics are read by one reader in one session
+        ReaderSettings.Builder settings = ReaderSettings.newBuilder()
+                .setConsumerName(consumerName);
+        if (maxMemoryUsage > 0) {
+            // the reader doesn't request new data from the server while its buffer is full
+            settings.setMaxMemoryUsageBytes(maxMemoryUsage);
+        }
+        if (decompressionThreads > 0) {
+            // compressed batches are decoded by own threads of the reader, not by the shared pool of the SDK
+            AtomicInteger threadIdx = new AtomicInteger();
+            decompressionPool = Executors.newFixedThreadPool(decompressionThreads, r -> {
+                Thread thread = new Thread(r, "ydb-topic-" + id + "-decompression-" + threadIdx.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            PluginMetrics.Histogram decompressionTime = metrics.histogram("decompression_time");
+            CounterMetric decompressionTasks = metrics.counter("decompression_tasks");
+            settings.setDecompressionExecutor(task -> decompressionPool.execute(() -> {
+                long startNanos = System.nanoTime();
+                try {
+                    task.run();
+                } finally {
+                    decompressionTime.record(System.nanoTime() - startNanos);
+                    decompressionTasks.increment();
+                }
+            }));
+        }
+        for (TopicConfig topic : topics) {
+            TopicReadSettings.Builder topicSettings = TopicReadSettings.newBuilder().setPath(topic.path);
+            if (topic.readFrom != null) {
+                topicSettings.setReadFrom(topic.readFrom);
+            }
+            settings.addTopic(topicSettings.build());
+        }
 
-        reader = topicClient.createAsyncReader(settings, handlerSettings);
+        reader = connection.client().createAsyncReader(settings.build(), handlerSettings);
         reader.init();
     }
 
     @Override
     public void stop() {
+        if (commitScheduler != null) {
+            commitScheduler.shutdownNow();
+        }
+        // already consumed messages are committed while the reader is alive, the handler is closed only when the
+        // reader doesn't deliver new messages anymore
+        handler.flushCommits();
         reader.shutdown().thenRun(() -> {
-            topicClient.close();
-            transport.close();
+            handler.close();
+            if (decompressionPool != null) {
+                decompressionPool.shutdown();
+            }
+            connection.close();
             stopped.countDown();
         });
     }
@@ -113,8 +258,76 @@ public class YdbTopic implements Input {
                 USE_METADATA,
 
                 TOPIC_PATH,
+                TOPICS,
                 CONSUMER_NAME,
-                SCHEMA
+                SCHEMA,
+                COMMIT_BATCH_SIZE,
+                COMMIT_INTERVAL_MS,
+                DECODE_THREADS,
+                BATCH_FORMAT,
+                MAX_MEMORY_USAGE,
+                HANDOFF_QUEUE_SIZE,
+                DECOMPRESSION_THREADS,
+                INCLUDE_FIELDS,
+                EXCLUDE_FIELDS
+        );
+    }
+
+    private static List<TopicConfig> parseTopics(List<Object> topics) {
+        List<TopicConfig> configs = new ArrayList<>(topics.size());
+        for (Object topic : topics) {
+            if (topic instanceof String) {
+                configs.add(new TopicConfig((String) topic, null, null));
+                continue;
+            }
+            if (!(topic instanceof Map)) {
+                throw new IllegalStateException("Invalid topic " + topic + ", expected path or hash");
+            }
+
+            Map<?, ?> map = (Map<?, ?>) topic;
+            for (Object key : map.keySet()) {
+                if (!"path".equals(key) && !"schema".equals(key) && !"read_from".equals(key)) {
+                    throw new IllegalStateException("Unsupported option " + key + " of topic " + topic);
+                }
+            }
+            Object path = map.get("path");
+            if (path == null || path.toString().isEmpty()) {
+                throw new IllegalStateException("Topic " + topic + " doesn't have path");
+            }
+            Object schema = map.get("schema");
+            Object readFrom = map.get("read_from");
+            configs.add(new TopicConfig(path.toString(), schema != null ? schema.toString() : null,
+                    readFrom != null ? parseReadFrom(readFrom.toString()) : null));
+        }
+        return configs;
+    }
+
+    private static Instant parseReadFrom(String readFrom) {
+        try {
+            return Instant.parse(readFrom);
+        } catch (DateTimeParseException e) {
+            throw new IllegalStateException("Invalid read_from " + readFrom + ", expected ISO-8601 timestamp", e);
+        }
+    }
+
+    private static boolean parseBatchFormat(String format) {
+        switch (format.toLowerCase()) {
+            case "none":
+                return false;
+            case "ndjson":
+                return true;
+            default:
+                throw new IllegalStateException("Unsupported batch format " + format + ", expected none or ndjson");
+        }
+    }
+
+    private static String connectionKey(Configuration config) {
+        return String.join("\n",
+                config.get(CONNECTION),
+                String.valueOf(config.get(SA_KEY_FILE)),
+                String.valueOf(config.get(TOKEN_AUTH)),
+                String.valueOf(config.get(TOKEN_FILE)),
+                String.valueOf(config.get(USE_METADATA))
         );
     }
 
@@ -1,14 +1,23 @@
 package tech.ydb.logstash;
 
+import java.lang.reflect.Proxy;
 import java.net.UnknownHostException;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
+import co.elastic.logstash.api.Context;
+import co.elastic.logstash.api.CounterMetric;
+import co.elastic.logstash.api.NamespacedMetric;
+import org.jcodings.specific.ASCIIEncoding;
+import org.jruby.RubyString;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
+import org.logstash.Event;
 import org.logstash.plugins.ConfigurationImpl;
 
 import tech.ydb.test.junit5.GrpcTransportExtension;
@@ -160,6 +169,556 @@ public class YdbTopicsInputTest {
 
     }
 
+    @Test
+    public void decodeThreadsTest() throws InterruptedException, UnknownHostException {
+        String topicPath = ydb.database() + "/test/decode-topic";
+        String consumerName = "test-consumer";
+
+        // create topic
+        TopicClient client = TopicClient.newClient(transport).build();
+        client.createTopic(topicPath, CreateTopicSettings.newBuilder()
+                .addConsumer(Consumer.newBuilder().setName(consumerName).build())
+                .build())
+                .join().expectSuccess("cannot create topic");
+        try {
+            SyncWriter writer = client.createSyncWriter(WriterSettings.newBuilder()
+                    .setTopicPath(topicPath)
+                    .setCodec(Codec.RAW)
+                    .build());
+            writer.init();
+
+            for (int idx = 0; idx < 50; idx++) {
+                writer.send(Message.of(("{ \"idx\": " + idx + " }").getBytes()));
+            }
+            writer.flush();
+
+            Map<String, Object> config = createConfigMap();
+            config.put(YdbTopic.TOPIC_PATH.name(), topicPath);
+            config.put(YdbTopic.CONSUMER_NAME.name(), consumerName);
+            config.put(YdbTopic.SCHEMA.name(), "JSON");
+            config.put(YdbTopic.DECODE_THREADS.name(), 4L);
+
+            YdbTopic plugin = new YdbTopic("test-decode", new ConfigurationImpl(config), null);
+            BlockingQueue<Map<String, Object>> queue = new ArrayBlockingQueue<>(100);
+            plugin.start(queue::add);
+
+            // messages of one partition are decoded in order of reading
+            for (long idx = 0; idx < 50; idx++) {
+                Map<String, Object> map = queue.poll(1, TimeUnit.SECONDS);
+                Assertions.assertNotNull(map);
+                Assertions.assertTrue(map.get("idx") instanceof Number);
+                Assertions.assertEquals(idx, ((Number) map.get("idx")).longValue());
+            }
+
+            plugin.stop();
+            plugin.awaitStop();
+        } finally {
+            // drop topic
+            client.dropTopic(topicPath).join().expectSuccess("cannot drop topic");
+        }
+    }
+
+    @Test
+    public void ndjsonBatchesTest() throws InterruptedException, UnknownHostException {
+        String topicPath = ydb.database() + "/test/ndjson-topic";
+        String consumerName = "test-consumer";
+
+        // create topic
+        TopicClient client = TopicClient.newClient(transport).build();
+        client.createTopic(topicPath, CreateTopicSettings.newBuilder()
+                .addConsumer(Consumer.newBuilder().setName(consumerName).build())
+                .build())
+                .join().expectSuccess("cannot create topic");
+        try {
+            SyncWriter writer = client.createSyncWriter(WriterSettings.newBuilder()
+                    .setTopicPath(topicPath)
+                    .setCodec(Codec.RAW)
+                    .build());
+            writer.init();
+
+            String frame1 = new String(JSON_M1.getData()) + "\n" + new String(JSON_M2.getData()) + "\n";
+            String frame2 = "\n" + new String(JSON_M3.getData()) + "\nbroken json\n" + new String(JSON_M1.getData());
+            writer.send(Message.of(frame1.getBytes()));
+            writer.send(Message.of(frame2.getBytes()));
+            writer.flush();
+
+            Map<String, Object> config = createConfigMap();
+            config.put(YdbTopic.TOPIC_PATH.name(), topicPath);
+            config.put(YdbTopic.CONSUMER_NAME.name(), consumerName);
+            config.put(YdbTopic.SCHEMA.name(), "JSON");
+            config.put(YdbTopic.BATCH_FORMAT.name(), "ndjson");
+
+            YdbTopic plugin = new YdbTopic("test-ndjson", new ConfigurationImpl(config), null);
+            BlockingQueue<Map<String, Object>> queue = new ArrayBlockingQueue<>(10);
+            plugin.start(queue::add);
+
+            assertJsonMessage1(queue.poll(1, TimeUnit.SECONDS));
+            assertJsonMessage2(queue.poll(1, TimeUnit.SECONDS));
+            assertJsonMessage3(queue.poll(1, TimeUnit.SECONDS));
+            assertJsonMessage1(queue.poll(1, TimeUnit.SECONDS));
+
+            plugin.stop();
+            plugin.awaitStop();
+        } finally {
+            // drop topic
+            client.dropTopic(topicPath).join().expectSuccess("cannot drop topic");
+        }
+    }
+
+    @Test
+    public void textLinesTest() throws InterruptedException, UnknownHostException {
+        String topicPath = ydb.database() + "/test/lines-topic";
+        String consumerName = "test-consumer";
+
+        // create topic
+        TopicClient client = TopicClient.newClient(transport).build();
+        client.createTopic(topicPath, CreateTopicSettings.newBuilder()
+                .addConsumer(Consumer.newBuilder().setName(consumerName).build())
+                .build())
+                .join().expectSuccess("cannot create topic");
+        try {
+            SyncWriter writer = client.createSyncWriter(WriterSettings.newBuilder()
+                    .setTopicPath(topicPath)
+                    .setCodec(Codec.RAW)
+                    .build());
+            writer.init();
+
+            writer.send(Message.of("<13>Oct 11 22:14:15 host app: first\r\n\nsecond line\n".getBytes()));
+            writer.send(Message.of("{ \"not\": \"parsed\" }".getBytes()));
+            writer.flush();
+
+            Map<String, Object> config = createConfigMap();
+            config.put(YdbTopic.TOPIC_PATH.name(), topicPath);
+            config.put(YdbTopic.CONSUMER_NAME.name(), consumerName);
+            config.put(YdbTopic.SCHEMA.name(), "LINES");
+
+            YdbTopic plugin = new YdbTopic("test-lines", new ConfigurationImpl(config), null);
+            BlockingQueue<Map<String, Object>> queue = new ArrayBlockingQueue<>(10);
+            plugin.start(queue::add);
+
+            Assertions.assertEquals(Collections.singletonMap("message", "<13>Oct 11 22:14:15 host app: first"),
+                    queue.poll(1, TimeUnit.SECONDS));
+            Assertions.assertEquals(Collections.singletonMap("message", "second line"),
+                    queue.poll(1, TimeUnit.SECONDS));
+            Assertions.assertEquals(Collections.singletonMap("message", "{ \"not\": \"parsed\" }"),
+                    queue.poll(1, TimeUnit.SECONDS));
+
+            plugin.stop();
+            plugin.awaitStop();
+        } finally {
+            // drop topic
+            client.dropTopic(topicPath).join().expectSuccess("cannot drop topic");
+        }
+    }
+
+    @Test
+    public void bytesTest() throws InterruptedException, UnknownHostException {
+        String topicPath = ydb.database() + "/test/bytes-topic";
+        String consumerName = "test-consumer";
+
+        // create topic
+        TopicClient client = TopicClient.newClient(transport).build();
+        client.createTopic(topicPath, CreateTopicSettings.newBuilder()
+                .addConsumer(Consumer.newBuilder().setName(consumerName).build())
+                .build())
+                .join().expectSuccess("cannot create topic");
+        try {
+            SyncWriter writer = client.createSyncWriter(WriterSettings.newBuilder()
+                    .setTopicPath(topicPath)
+                    .setCodec(Codec.RAW)
+                    .build());
+            writer.init();
+
+            byte[] payload = new byte[] { 0x00, (byte) 0xFF, (byte) 0xC3, 0x28, '\n', 0x7F };
+            writer.send(Message.of(payload));
+            writer.flush();
+
+            Map<String, Object> config = createConfigMap();
+            config.put(YdbTopic.TOPIC_PATH.name(), topicPath);
+            config.put(YdbTopic.CONSUMER_NAME.name(), consumerName);
+            config.put(YdbTopic.SCHEMA.name(), "BYTES");
+
+            YdbTopic plugin = new YdbTopic("test-bytes", new ConfigurationImpl(config), null);
+            BlockingQueue<Map<String, Object>> queue = new ArrayBlockingQueue<>(10);
+            plugin.start(queue::add);
+
+            Map<String, Object> event = queue.poll(1, TimeUnit.SECONDS);
+            Assertions.assertNotNull(event);
+            Assertions.assertEquals(Collections.singleton("message"), event.keySet());
+            RubyString message = (RubyString) event.get("message");
+            Assertions.assertArrayEquals(payload, message.getBytes());
+            Assertions.assertEquals(ASCIIEncoding.INSTANCE, message.getEncoding());
+
+            // the binary string is accepted by Logstash event as is
+            Event logstashEvent = new Event(event);
+            Object converted = logstashEvent.getUnconvertedField("message");
+            Assertions.assertArrayEquals(payload, ((RubyString) converted).getBytes());
+
+            plugin.stop();
+            plugin.awaitStop();
+        } finally {
+            // drop topic
+            client.dropTopic(topicPath).join().expectSuccess("cannot drop topic");
+        }
+    }
+
+    @Test
+    public void multipleTopicsTest() throws InterruptedException, UnknownHostException {
+        String jsonTopicPath = ydb.database() + "/test/multi-json-topic";
+        String textTopicPath = ydb.database() + "/test/multi-text-topic";
+        String consumerName = "test-consumer";
+
+        // create topics
+        TopicClient client = TopicClient.newClient(transport).build();
+        for (String topicPath : Arrays.asList(jsonTopicPath, textTopicPath)) {
+            client.createTopic(topicPath, CreateTopicSettings.newBuilder()
+                    .addConsumer(Consumer.newBuilder().setName(consumerName).build())
+                    .build())
+                    .join().expectSuccess("cannot create topic");
+        }
+        try {
+            for (String topicPath : Arrays.asList(jsonTopicPath, textTopicPath)) {
+                SyncWriter writer = client.createSyncWriter(WriterSettings.newBuilder()
+                        .setTopicPath(topicPath)
+                        .setCodec(Codec.RAW)
+                        .build());
+                writer.init();
+                writer.send(JSON_M1);
+                writer.flush();
+            }
+
+            // relative path is resolved against the database, events are tagged with the path of the settings
+            Map<String, Object> textTopic = new HashMap<>();
+            textTopic.put("path", "test/multi-text-topic");
+            textTopic.put("schema", "TEXT");
+            textTopic.put("read_from", "2020-01-01T00:00:00Z");
+
+            Map<String, Object> config = createConfigMap();
+            config.put(YdbTopic.TOPICS.name(), Arrays.asList(jsonTopicPath, textTopic));
+            config.put(YdbTopic.CONSUMER_NAME.name(), consumerName);
+            config.put(YdbTopic.SCHEMA.name(), "JSON");
+
+            YdbTopic plugin = new YdbTopic("test-multi", new ConfigurationImpl(config), null);
+            BlockingQueue<Map<String, Object>> queue = new ArrayBlockingQueue<>(10);
+            plugin.start(queue::add);
+
+            // order of messages of different topics is not defined
+            Map<Object, Map<String, Object>> byTopic = new HashMap<>();
+            for (int idx = 0; idx < 2; idx++) {
+                Map<String, Object> map = queue.poll(1, TimeUnit.SECONDS);
+                Assertions.assertNotNull(map);
+                Map<?, ?> metadata = (Map<?, ?>) map.remove(MessageHandler.TOPIC_METADATA);
+                Assertions.assertNotNull(metadata);
+                byTopic.put(metadata.get("topic"), map);
+            }
+
+            assertJsonMessage1(byTopic.get(jsonTopicPath));
+            Assertions.assertEquals(Collections.singletonMap("message", new String(JSON_M1.getData())),
+                    byTopic.get("test/multi-text-topic"));
+
+            plugin.stop();
+            plugin.awaitStop();
+        } finally {
+            // drop topics
+            client.dropTopic(jsonTopicPath).join().expectSuccess("cannot drop topic");
+            client.dropTopic(textTopicPath).join().expectSuccess("cannot drop topic");
+        }
+    }
+
+    @Test
+    public void handoffQueueTest() throws InterruptedException, UnknownHostException {
+        String topicPath = ydb.database() + "/test/handoff-topic";
+        String consumerName = "test-consumer";
+
+        // create topic
+        TopicClient client = TopicClient.newClient(transport).build();
+        client.createTopic(topicPath, CreateTopicSettings.newBuilder()
+                .addConsumer(Consumer.newBuilder().setName(consumerName).build())
+                .build())
+                .join().expectSuccess("cannot create topic");
+        try {
+            SyncWriter writer = client.createSyncWriter(WriterSettings.newBuilder()
+                    .setTopicPath(topicPath)
+                    .setCodec(Codec.RAW)
+                    .build());
+            writer.init();
+            for (int idx = 0; idx < 20; idx++) {
+                writer.send(Message.of(("line " + idx).getBytes()));
+            }
+            writer.flush();
+
+            Map<String, Object> config = createConfigMap();
+            config.put(YdbTopic.TOPIC_PATH.name(), topicPath);
+            config.put(YdbTopic.CONSUMER_NAME.name(), consumerName);
+            config.put(YdbTopic.SCHEMA.name(), "TEXT");
+            config.put(YdbTopic.MAX_MEMORY_USAGE.name(), 1024L * 1024);
+            config.put(YdbTopic.HANDOFF_QUEUE_SIZE.name(), 2L);
+
+            YdbTopic plugin = new YdbTopic("test-handoff", new ConfigurationImpl(config), null);
+            // the slow consumer keeps the handoff queue full, so the reader waits for it
+            BlockingQueue<Map<String, Object>> queue = new ArrayBlockingQueue<>(30);
+            plugin.start(map -> {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                queue.add(map);
+            });
+
+            for (int idx = 0; idx < 20; idx++) {
+                Assertions.assertEquals(Collections.singletonMap("message", "line " + idx),
+                        queue.poll(1, TimeUnit.SECONDS));
+            }
+
+            plugin.stop();
+            plugin.awaitStop();
+        } finally {
+            // drop topic
+            client.dropTopic(topicPath).join().expectSuccess("cannot drop topic");
+        }
+    }
+
+    @Test
+    public void decompressionThreadsTest() throws InterruptedException, UnknownHostException {
+        String topicPath = ydb.database() + "/test/gzip-topic";
+        String consumerName = "test-consumer";
+
+        // create topic
+        TopicClient client = TopicClient.newClient(transport).build();
+        client.createTopic(topicPath, CreateTopicSettings.newBuilder()
+                .addConsumer(Consumer.newBuilder().setName(consumerName).build())
+                .build())
+                .join().expectSuccess("cannot create topic");
+        try {
+            SyncWriter writer = client.createSyncWriter(WriterSettings.newBuilder()
+                    .setTopicPath(topicPath)
+                    .setCodec(Codec.GZIP)
+                    .build());
+            writer.init();
+
+            writer.send(JSON_M1);
+            writer.send(JSON_M2);
+            writer.send(JSON_M3);
+            writer.flush();
+
+            Map<String, Object> config = createConfigMap();
+            config.put(YdbTopic.TOPIC_PATH.name(), topicPath);
+            config.put(YdbTopic.CONSUMER_NAME.name(), consumerName);
+            config.put(YdbTopic.SCHEMA.name(), "JSON");
+            config.put(YdbTopic.DECOMPRESSION_THREADS.name(), 2L);
+
+            YdbTopic plugin = new YdbTopic("test-gzip", new ConfigurationImpl(config), null);
+            BlockingQueue<Map<String, Object>> queue = new ArrayBlockingQueue<>(10);
+            plugin.start(queue::add);
+
+            assertJsonMessage1(queue.poll(1, TimeUnit.SECONDS));
+            assertJsonMessage2(queue.poll(1, TimeUnit.SECONDS));
+            assertJsonMessage3(queue.poll(1, TimeUnit.SECONDS));
+
+            plugin.stop();
+            plugin.awaitStop();
+        } finally {
+            // drop topic
+            client.dropTopic(topicPath).join().expectSuccess("cannot drop topic");
+        }
+    }
+
+    @Test
+    public void fieldsProjectionTest() throws InterruptedException, UnknownHostException {
+        String topicPath = ydb.database() + "/test/projection-topic";
+        String consumerName = "test-consumer";
+
+        // create topic
+        TopicClient client = TopicClient.newClient(transport).build();
+        client.createTopic(topicPath, CreateTopicSettings.newBuilder()
+                .addConsumer(Consumer.newBuilder().setName(consumerName).build())
+                .build())
+                .join().expectSuccess("cannot create topic");
+        try {
+            SyncWriter writer = client.createSyncWriter(WriterSettings.newBuilder()
+                    .setTopicPath(topicPath)
+                    .setCodec(Codec.RAW)
+                    .build());
+            writer.init();
+
+            writer.send(JSON_M1);
+            writer.send(JSON_M3);
+            writer.flush();
+
+            Map<String, Object> config = createConfigMap();
+            config.put(YdbTopic.TOPIC_PATH.name(), topicPath);
+            config.put(YdbTopic.CONSUMER_NAME.name(), consumerName);
+            config.put(YdbTopic.SCHEMA.name(), "JSON");
+            config.put(YdbTopic.INCLUDE_FIELDS.name(), Arrays.asList("text", "number", "[inner][b]"));
+            config.put(YdbTopic.EXCLUDE_FIELDS.name(), Collections.singletonList("number"));
+
+            YdbTopic plugin = new YdbTopic("test-projection", new ConfigurationImpl(config), null);
+            BlockingQueue<Map<String, Object>> queue = new ArrayBlockingQueue<>(10);
+            plugin.start(queue::add);
+
+            Assertions.assertEquals(Collections.singletonMap("text", "ts"), queue.poll(1, TimeUnit.SECONDS));
+            Assertions.assertEquals(Collections.singletonMap("inner", "{\"b\":true}"), queue.poll(1, TimeUnit.SECONDS));
+
+            plugin.stop();
+            plugin.awaitStop();
+        } finally {
+            // drop topic
+            client.dropTopic(topicPath).join().expectSuccess("cannot drop topic");
+        }
+    }
+
+    @Test
+    public void commitsTest() throws InterruptedException, UnknownHostException {
+        String topicPath = ydb.database() + "/test/commit-topic";
+        String consumerName = "test-consumer";
+
+        // create topic
+        TopicClient client = TopicClient.newClient(transport).build();
+        client.createTopic(topicPath, CreateTopicSettings.newBuilder()
+                .addConsumer(Consumer.newBuilder().setName(consumerName).build())
+                .build())
+                .join().expectSuccess("cannot create topic");
+        try {
+            SyncWriter writer = client.createSyncWriter(WriterSettings.newBuilder()
+                    .setTopicPath(topicPath)
+                    .setCodec(Codec.RAW)
+                    .build());
+            writer.init();
+            for (int idx = 0; idx < 3; idx++) {
+                writer.send(Message.of(("line " + idx).getBytes()));
+            }
+            writer.flush();
+
+            Map<String, Object> config = createConfigMap();
+            config.put(YdbTopic.TOPIC_PATH.name(), topicPath);
+            config.put(YdbTopic.CONSUMER_NAME.name(), consumerName);
+            config.put(YdbTopic.SCHEMA.name(), "TEXT");
+            config.put(YdbTopic.COMMIT_BATCH_SIZE.name(), 5L);
+
+            Map<String, Object> metrics = new ConcurrentHashMap<>();
+            YdbTopic plugin = new YdbTopic("test-commit-batch", new ConfigurationImpl(config),
+                    metricsContext(metrics));
+            BlockingQueue<Map<String, Object>> queue = new ArrayBlockingQueue<>(30);
+            plugin.start(queue::add);
+
+            for (int idx = 0; idx < 3; idx++) {
+                Assertions.assertEquals(Collections.singletonMap("message", "line " + idx),
+                        queue.poll(1, TimeUnit.SECONDS));
+            }
+            // messages of the not full batch are not committed, so they would be read again after the crash
+            Thread.sleep(300);
+            Assertions.assertEquals(0L, metrics.getOrDefault("commits", 0L));
+
+            for (int idx = 3; idx < 10; idx++) {
+                writer.send(Message.of(("line " + idx).getBytes()));
+            }
+            writer.flush();
+            for (int idx = 3; idx < 10; idx++) {
+                Assertions.assertEquals(Collections.singletonMap("message", "line " + idx),
+                        queue.poll(1, TimeUnit.SECONDS));
+            }
+            awaitCommits(metrics);
+
+            // the rest of the messages is committed by stop
+            plugin.stop();
+            plugin.awaitStop();
+
+            // the consumer is blocked, so the timer has nothing to commit until the events are taken from the handoff
+            for (int idx = 10; idx < 15; idx++) {
+                writer.send(Message.of(("line " + idx).getBytes()));
+            }
+            writer.flush();
+            config.remove(YdbTopic.COMMIT_BATCH_SIZE.name());
+            config.put(YdbTopic.COMMIT_INTERVAL_MS.name(), 50L);
+            config.put(YdbTopic.HANDOFF_QUEUE_SIZE.name(), 2L);
+
+            metrics.clear();
+            CountDownLatch consumerBlocked = new CountDownLatch(1);
+            plugin = new YdbTopic("test-commit-interval", new ConfigurationImpl(config), metricsContext(metrics));
+            plugin.start(map -> {
+                try {
+                    consumerBlocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                queue.add(map);
+            });
+
+            Thread.sleep(300);
+            Assertions.assertEquals(0L, metrics.getOrDefault("commits", 0L));
+            consumerBlocked.countDown();
+
+            // the restarted reader of the same consumer doesn't read the committed messages again
+            for (int idx = 10; idx < 15; idx++) {
+                Assertions.assertEquals(Collections.singletonMap("message", "line " + idx),
+                        queue.poll(1, TimeUnit.SECONDS));
+            }
+            awaitCommits(metrics);
+
+            plugin.stop();
+            plugin.awaitStop();
+
+            // everything is committed by the timer and by stop, the next reader gets only the new messages
+            writer.send(Message.of("line 15".getBytes()));
+            writer.flush();
+
+            plugin = new YdbTopic("test-commit-restart", new ConfigurationImpl(config), null);
+            plugin.start(queue::add);
+
+            Assertions.assertEquals(Collections.singletonMap("message", "line 15"), queue.poll(1, TimeUnit.SECONDS));
+            Assertions.assertNull(queue.poll(500, TimeUnit.MILLISECONDS));
+
+            plugin.stop();
+            plugin.awaitStop();
+        } finally {
+            // drop topic
+            client.dropTopic(topicPath).join().expectSuccess("cannot drop topic");
+        }
+    }
+
+    private static void awaitCommits(Map<String, Object> metrics) throws InterruptedException {
+        // commits are counted when the server confirms them
+        for (int idx = 0; idx < 50 && (Long) metrics.getOrDefault("commits", 0L) == 0; idx++) {
+            Thread.sleep(100);
+        }
+        Assertions.assertNotEquals(0L, metrics.getOrDefault("commits", 0L));
+    }
+
+    /**
+     * Context with the metric which saves all reported counters and gauges to the map
+     */
+    private static Context metricsContext(Map<String, Object> values) {
+        return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[] { Context.class },
+                (proxy, method, args) -> "getMetric".equals(method.getName()) ? recordingMetric("", values) : null);
+    }
+
+    private static NamespacedMetric recordingMetric(String prefix, Map<String, Object> values) {
+        return (NamespacedMetric) Proxy.newProxyInstance(NamespacedMetric.class.getClassLoader(),
+                new Class<?>[] { NamespacedMetric.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "namespace":
+                            return recordingMetric(prefix + String.join(".", (String[]) args[0]) + ".", values);
+                        case "counter":
+                            String name = prefix + args[0];
+                            return Proxy.newProxyInstance(CounterMetric.class.getClassLoader(),
+                                    new Class<?>[] { CounterMetric.class }, (counter, m, a) -> {
+                                        long delta = a != null && a.length > 0 ? ((Number) a[0]).longValue() : 1;
+                                        if (m.getName().equals("getValue")) {
+                                            return values.getOrDefault(name, 0L);
+                                        }
+                                        values.merge(name, delta, (v1, v2) -> (Long) v1 + (Long) v2);
+                                        return null;
+                                    });
+                        case "gauge":
+                            values.put(prefix + args[0], args[1]);
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
     private void assertJsonMessage1(Map<String, Object> map) {
         Assertions.assertTrue(map.containsKey("text"));
         Assertions.assertTrue(map.containsKey("number"));
@@ -1,40 +1,237 @@
 package tech.ydb.logstash;
 
-
-
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 
 import co.elastic.logstash.api.Event;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import org.jcodings.Encoding;
+import org.jcodings.specific.USASCIIEncoding;
+import org.jcodings.specific.UTF8Encoding;
+import org.jruby.RubyBignum;
+import org.jruby.RubyBoolean;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.RubyNil;
+import org.jruby.RubyString;
+import org.jruby.ext.bigdecimal.RubyBigDecimal;
+import org.jruby.util.ByteList;
+import org.jruby.util.StringSupport;
+import org.logstash.Timestamp;
+import org.logstash.ext.JrubyTimestampExtLibrary.RubyTimestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import tech.ydb.topic.write.Message;
 
+/**
+ * Serializer of Logstash events to JSON messages. Fields are written in the order of names, event timestamp is
+ * written as {@code timestamp} field with epoch millis.
+ */
 public class MessageProcessor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageProcessor.class);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String TIMESTAMP = "timestamp";
+    private static final String LOGSTASH_TIMESTAMP = "@timestamp";
+    private static final String LOGSTASH_VERSION = "@version";
+
+    // Every worker thread has own generator and buffer, they are reused for all events of the thread
+    private static final ThreadLocal<Serializer> SERIALIZER = ThreadLocal.withInitial(Serializer::new);
+
+    private interface ValueWriter {
+        void write(JsonGenerator gen, Object value) throws IOException;
+    }
+
+    private static final ClassValue<ValueWriter> WRITERS = new ClassValue<ValueWriter>() {
+        @Override
+        protected ValueWriter computeValue(Class<?> type) {
+            return findWriter(type);
+        }
+    };
+
+    /**
+     * @return message with JSON of the event or null if the event cannot be serialized
+     */
     public static Message processJsonString(Event event) {
+        byte[] json = toJsonBytes(event);
+        return json != null ? Message.of(json) : null;
+    }
+
+    /**
+     * @return JSON of the event or null if the event cannot be serialized, the error is logged
+     */
+    public static byte[] toJsonBytes(Event event) {
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            SortedMap<String, Object> json = new TreeMap<>();
-            json.put("timestamp", event.getEventTimestamp().toEpochMilli());
+            return SERIALIZER.get().serialize(event);
+        } catch (IOException | RuntimeException e) {
+            // the generator may be left in the middle of the object, so the next event starts with the new one
+            SERIALIZER.remove();
+            LOGGER.error("Cannot serialize event to JSON", e);
+            return null;
+        }
+    }
 
-            event.getData().forEach((name, value) -> {
-                if (value == null) {
-                    return;
-                }
-                if ("org.jruby.RubyString".equals(value.getClass().getName())) {
-                    json.put(name, value.toString());
+    private static final class Serializer {
+        private final ByteArrayBuilder buffer = new ByteArrayBuilder();
+        private final List<String> names = new ArrayList<>();
+        private final JsonGenerator generator;
+
+        Serializer() {
+            try {
+                generator = JSON_FACTORY.createGenerator(buffer);
+                // every event is written as separate root value without any separator
+                generator.setRootValueSeparator(null);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot create JSON generator", e);
+            }
+        }
+
+        byte[] serialize(Event event) throws IOException {
+            Map<String, Object> data = event.getData();
+
+            names.clear();
+            for (String name : data.keySet()) {
+                // internal fields of Logstash are skipped, event time is written as timestamp
+                if (LOGSTASH_TIMESTAMP.equals(name) || LOGSTASH_VERSION.equals(name)) {
+                    continue;
                 }
-                if ("org.jruby.RubyFixnum".equals(value.getClass().getName())) {
-                    json.put(name, Long.valueOf(value.toString()));
+                names.add(name);
+            }
+            boolean hasTimestamp = data.containsKey(TIMESTAMP);
+            if (!hasTimestamp) {
+                names.add(TIMESTAMP);
+            }
+            names.sort(null);
+
+            generator.writeStartObject();
+            for (String name : names) {
+                if (!hasTimestamp && TIMESTAMP.equals(name)) {
+                    generator.writeNumberField(TIMESTAMP, event.getEventTimestamp().toEpochMilli());
+                    continue;
                 }
-                if ("org.jruby.RubyFloat".equals(value.getClass().getName())) {
-                    json.put(name, Float.valueOf(value.toString()));
+
+                Object value = data.get(name);
+                if (value != null) {
+                    generator.writeFieldName(name);
+                    writeValue(generator, value);
                 }
-            });
-            return Message.of(mapper.writer().writeValueAsBytes(json));
-        } catch (JsonProcessingException e) {
-            return Message.of(e.getMessage().getBytes());
+            }
+            generator.writeEndObject();
+            generator.flush();
+
+            byte[] bytes = buffer.toByteArray();
+            buffer.reset();
+            return bytes;
+        }
+    }
+
+    private static void writeValue(JsonGenerator gen, Object value) throws IOException {
+        if (value == null) {
+            gen.writeNull();
+            return;
+        }
+        WRITERS.get(value.getClass()).write(gen, value);
+    }
+
+    private static ValueWriter findWriter(Class<?> type) {
+        if (RubyString.class.isAssignableFrom(type)) {
+            return (gen, value) -> writeRubyString(gen, (RubyString) value);
+        }
+        if (RubyFixnum.class.isAssignableFrom(type)) {
+            return (gen, value) -> gen.writeNumber(((RubyFixnum) value).getLongValue());
+        }
+        if (RubyFloat.class.isAssignableFrom(type)) {
+            return (gen, value) -> gen.writeNumber(((RubyFloat) value).getDoubleValue());
+        }
+        if (RubyBoolean.class.isAssignableFrom(type)) {
+            return (gen, value) -> gen.writeBoolean(((RubyBoolean) value).isTrue());
+        }
+        if (RubyBignum.class.isAssignableFrom(type)) {
+            return (gen, value) -> gen.writeNumber(((RubyBignum) value).getBigIntegerValue());
+        }
+        if (RubyBigDecimal.class.isAssignableFrom(type)) {
+            return (gen, value) -> gen.writeNumber(((RubyBigDecimal) value).getBigDecimalValue());
+        }
+        if (RubyNil.class.isAssignableFrom(type)) {
+            return (gen, value) -> gen.writeNull();
+        }
+        if (RubyTimestamp.class.isAssignableFrom(type)) {
+            // timestamps of event fields are kept as ruby objects, they are written in the same ISO-8601 format
+            return (gen, value) -> gen.writeString(((RubyTimestamp) value).getTimestamp().toString());
+        }
+
+        if (type == String.class) {
+            return (gen, value) -> gen.writeString((String) value);
+        }
+        if (type == Boolean.class) {
+            return (gen, value) -> gen.writeBoolean((Boolean) value);
+        }
+        if (type == Long.class || type == Integer.class || type == Short.class || type == Byte.class) {
+            return (gen, value) -> gen.writeNumber(((Number) value).longValue());
+        }
+        if (type == Double.class || type == Float.class) {
+            return (gen, value) -> gen.writeNumber(((Number) value).doubleValue());
+        }
+        if (type == BigInteger.class) {
+            return (gen, value) -> gen.writeNumber((BigInteger) value);
+        }
+        if (type == BigDecimal.class) {
+            return (gen, value) -> gen.writeNumber((BigDecimal) value);
+        }
+        if (type == Timestamp.class || type == Instant.class) {
+            return (gen, value) -> gen.writeString(value.toString());
+        }
+
+        if (Map.class.isAssignableFrom(type)) {
+            return (gen, value) -> writeMap(gen, (Map<?, ?>) value);
+        }
+        if (Collection.class.isAssignableFrom(type)) {
+            return (gen, value) -> writeCollection(gen, (Collection<?>) value);
+        }
+
+        return (gen, value) -> gen.writeString(value.toString());
+    }
+
+    private static void writeRubyString(JsonGenerator gen, RubyString value) throws IOException {
+        ByteList bytes = value.getByteList();
+        Encoding encoding = bytes.getEncoding();
+        boolean isUtf8 = encoding == UTF8Encoding.INSTANCE || encoding == USASCIIEncoding.INSTANCE;
+        if (isUtf8 && value.scanForCodeRange() != StringSupport.CR_BROKEN) {
+            // valid UTF-8 is written as is, without decoding to java String
+            gen.writeUTF8String(bytes.unsafeBytes(), bytes.begin(), bytes.realSize());
+        } else {
+            gen.writeString(value.toString());
+        }
+    }
+
+    private static void writeMap(JsonGenerator gen, Map<?, ?> map) throws IOException {
+        List<Map.Entry<?, ?>> entries = new ArrayList<>(map.entrySet());
+        entries.sort(Comparator.comparing(entry -> String.valueOf(entry.getKey())));
+
+        gen.writeStartObject();
+        for (Map.Entry<?, ?> entry : entries) {
+            if (entry.getValue() != null) {
+                gen.writeFieldName(String.valueOf(entry.getKey()));
+                writeValue(gen, entry.getValue());
+            }
+        }
+        gen.writeEndObject();
+    }
+
+    private static void writeCollection(JsonGenerator gen, Collection<?> collection) throws IOException {
+        gen.writeStartArray();
+        for (Object value : collection) {
+            writeValue(gen, value);
         }
+        gen.writeEndArray();
     }
 }
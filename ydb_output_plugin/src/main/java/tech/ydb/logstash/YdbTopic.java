@@ -1,16 +1,26 @@
 package tech.ydb.logstash;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CountDownLatch;
-import java.util.function.Function;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 import co.elastic.logstash.api.Configuration;
 import co.elastic.logstash.api.Context;
+import co.elastic.logstash.api.CounterMetric;
 import co.elastic.logstash.api.Event;
 import co.elastic.logstash.api.LogstashPlugin;
 import co.elastic.logstash.api.Output;
@@ -29,6 +39,7 @@ import tech.ydb.topic.settings.WriterSettings;
 import tech.ydb.topic.write.AsyncWriter;
 import tech.ydb.topic.write.Message;
 import tech.ydb.topic.write.QueueOverflowException;
+import tech.ydb.topic.write.WriteAck;
 
 
 /**
@@ -36,6 +47,8 @@ import tech.ydb.topic.write.QueueOverflowException;
  */
 @LogstashPlugin(name = "ydb_topic")
 public class YdbTopic implements Output {
+    private static final long OVERFLOW_RETRY_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
     private final Logger logger = LoggerFactory.getLogger(YdbTopic.class);
 
     static final PluginConfigSpec<String> CONNECTION = PluginConfigSpec.requiredStringSetting("connection_string");
@@ -45,30 +58,126 @@ public class YdbTopic implements Output {
     static final PluginConfigSpec<Boolean> USE_METADATA = PluginConfigSpec.booleanSetting("use_metadata");
 
     static final PluginConfigSpec<String> TOPIC_PATH = PluginConfigSpec.requiredStringSetting("topic_path");
+    static final PluginConfigSpec<String> CODEC = PluginConfigSpec.stringSetting("codec", "RAW");
+    static final PluginConfigSpec<Long> COMPRESSION_THREADS = PluginConfigSpec.numSetting("compression_threads", 0);
+    static final PluginConfigSpec<Boolean> BLOCK_ON_OVERFLOW = PluginConfigSpec.booleanSetting("block_on_overflow",
+            true);
+    static final PluginConfigSpec<Long> MAX_BUFFER_BYTES = PluginConfigSpec.numSetting("max_buffer_bytes", 0);
+    static final PluginConfigSpec<Long> MAX_BUFFER_MESSAGES = PluginConfigSpec.numSetting("max_buffer_messages", 0);
+    static final PluginConfigSpec<Long> WRITERS = PluginConfigSpec.numSetting("writers", 1);
+    static final PluginConfigSpec<String> PRODUCER_ID = PluginConfigSpec.stringSetting("producer_id");
+    static final PluginConfigSpec<String> PARTITION_KEY = PluginConfigSpec.stringSetting("partition_key");
+    static final PluginConfigSpec<String> BATCH_FORMAT = PluginConfigSpec.stringSetting("batch_format", "none");
+    static final PluginConfigSpec<Long> BATCH_MAX_EVENTS = PluginConfigSpec.numSetting("batch_max_events", 100);
+    static final PluginConfigSpec<Long> BATCH_MAX_BYTES = PluginConfigSpec.numSetting("batch_max_bytes", 1024 * 1024);
 
-    private final Function<Event, Message> convertor = MessageProcessor::processJsonString;
     private final String id;
-    private final GrpcTransport transport;
-    private final TopicClient topicClient;
-    private final AsyncWriter asyncWriter;
+    private final TopicClientRegistry.Lease connection;
+    private final PooledWriter[] writers;
+    private final String partitionKey;
+    private final AtomicInteger nextWriter = new AtomicInteger();
+    private final boolean ndjsonBatches;
+    private final int batchMaxEvents;
+    private final long batchMaxBytes;
+    private final long maxMessageBytes;
     private final CountDownLatch stopped = new CountDownLatch(1);
 
+    private final boolean blockOnOverflow;
+    private final LongAdder blockedNanos = new LongAdder();
+
+    private final PluginMetrics metrics;
+    private final CounterMetric eventsCount;
+    private final CounterMetric messagesSent;
+    private final CounterMetric bytesSent;
+    private final CounterMetric writeErrors;
+    private final CounterMetric droppedBatches;
+    private final CounterMetric oversizedMessages;
+    private final CounterMetric serializationErrors;
+    private final PluginMetrics.Histogram writeLatency;
+
     public YdbTopic(String id, Configuration config, Context context) {
         this.id = id;
+        this.metrics = PluginMetrics.of(context, this);
+        this.eventsCount = metrics.counter("events");
+        this.messagesSent = metrics.counter("messages_sent");
+        this.bytesSent = metrics.counter("bytes_sent");
+        this.writeErrors = metrics.counter("write_errors");
+        this.droppedBatches = metrics.counter("dropped_batches");
+        this.oversizedMessages = metrics.counter("oversized_messages");
+        this.serializationErrors = metrics.counter("serialization_errors");
+        this.writeLatency = metrics.histogram("write_latency");
+
         String topicPath = config.get(TOPIC_PATH);
         String connectionString = config.get(CONNECTION);
 
-        transport = GrpcTransport.forConnectionString(connectionString)
-                .withAuthProvider(createAuthProvider(config))
-                .build();
-        topicClient = TopicClient.newClient(transport).build();
+        ndjsonBatches = parseBatchFormat(config.get(BATCH_FORMAT));
+        batchMaxEvents = config.get(BATCH_MAX_EVENTS).intValue();
+        batchMaxBytes = config.get(BATCH_MAX_BYTES);
 
-        WriterSettings settings = WriterSettings.newBuilder()
+        long maxBufferBytes = config.get(MAX_BUFFER_BYTES);
+        if (ndjsonBatches && maxBufferBytes > 0 && batchMaxBytes > maxBufferBytes) {
+            throw new IllegalStateException("Max size of the batch " + batchMaxBytes
+                    + " must not be greater than max size of the buffer " + maxBufferBytes);
+        }
+        // the message greater than the whole buffer is never accepted by the writer
+        maxMessageBytes = maxBufferBytes > 0 ? maxBufferBytes : Long.MAX_VALUE;
+
+        // plugins with the same connection settings share one transport and one topic client
+        long compressionThreads = config.get(COMPRESSION_THREADS);
+        connection = TopicClientRegistry.acquire(connectionKey(config),
+                () -> GrpcTransport.forConnectionString(connectionString)
+                        .withAuthProvider(createAuthProvider(config))
+                        .build(),
+                transport -> {
+                    // messages are compressed by the writer in the compression pool of the client,
+                    // not in the pipeline worker
+                    TopicClient.Builder clientBuilder = TopicClient.newClient(transport);
+                    if (compressionThreads > 0) {
+                        clientBuilder.setCompressionPoolThreadCount((int) compressionThreads);
+                    }
+                    return clientBuilder.build();
+                }
+        );
+
+        WriterSettings.Builder settings = WriterSettings.newBuilder()
                 .setTopicPath(topicPath)
-                .setCodec(Codec.RAW)
-                .build();
-        asyncWriter = topicClient.createAsyncWriter(settings);
-        asyncWriter.init();
+                .setCodec(parseCodec(config.get(CODEC)));
+
+        if (maxBufferBytes > 0) {
+            settings.setMaxSendBufferMemorySize(maxBufferBytes);
+        }
+        long maxBufferMessages = config.get(MAX_BUFFER_MESSAGES);
+        if (maxBufferMessages > 0) {
+            settings.setMaxSendBufferMessagesCount((int) maxBufferMessages);
+        }
+
+        blockOnOverflow = config.get(BLOCK_ON_OVERFLOW);
+        partitionKey = config.get(PARTITION_KEY);
+
+        int writersCount = config.get(WRITERS).intValue();
+        if (writersCount < 1) {
+            throw new IllegalStateException("Count of writers must be positive, but was " + writersCount);
+        }
+
+        // plugin id is the same on all Logstash nodes with the same pipeline, so without the configured producer id
+        // every plugin instance has own random one, otherwise writers of different nodes break sessions of each other
+        String producerPrefix = config.get(PRODUCER_ID);
+        boolean producerConfigured = producerPrefix != null && !producerPrefix.isEmpty();
+        if (!producerConfigured) {
+            producerPrefix = id + "-" + UUID.randomUUID();
+        }
+
+        writers = new PooledWriter[writersCount];
+        for (int idx = 0; idx < writersCount; idx++) {
+            if (writersCount > 1) {
+                // every writer has own producer and so is placed to own partition session
+                String producerId = producerPrefix + "-" + idx;
+                settings.setProducerId(producerId).setMessageGroupId(producerId);
+            } else if (producerConfigured) {
+                settings.setProducerId(producerPrefix).setMessageGroupId(producerPrefix);
+            }
+            writers[idx] = new PooledWriter(connection.client().createAsyncWriter(settings.build()));
+        }
     }
 
     @Override
@@ -78,20 +187,149 @@ public class YdbTopic implements Output {
 
     @Override
     public void output(Collection<Event> events) {
-        try {
-            for (Event event : events) {
-                asyncWriter.send(convertor.apply(event));
+        eventsCount.increment(events.size());
+
+        // frames are filled only in the scope of one call, so no one event stays unsent after the return
+        NdjsonFrame[] frames = ndjsonBatches ? new NdjsonFrame[writers.length] : null;
+
+        long blocked = 0;
+        for (Event event : events) {
+            byte[] json = MessageProcessor.toJsonBytes(event);
+            if (json == null) {
+                // the error is already logged, the event is skipped instead of sending of the broken message
+                serializationErrors.increment();
+                continue;
+            }
+
+            int writerIdx = selectWriter(event);
+            Message message;
+            if (frames == null) {
+                message = Message.of(json);
+            } else {
+                if (frames[writerIdx] == null) {
+                    frames[writerIdx] = new NdjsonFrame();
+                }
+                message = frames[writerIdx].append(json);
             }
-        } catch (QueueOverflowException e) {
-            logger.error("Error sending message to YDB Topics: " + e.getMessage(), e);
+
+            if (message != null) {
+                long sendTime = send(writers[writerIdx], message);
+                if (sendTime < 0) {
+                    logger.error("Buffer of the writer is full, rest of the batch of {} events is dropped",
+                            events.size());
+                    droppedBatches.increment();
+                    reportBuffers();
+                    return;
+                }
+                blocked += sendTime;
+            }
+        }
+
+        if (frames != null) {
+            for (int idx = 0; idx < frames.length; idx++) {
+                if (frames[idx] != null && !frames[idx].isEmpty()) {
+                    long sendTime = send(writers[idx], frames[idx].take());
+                    if (sendTime < 0) {
+                        logger.error("Buffer of the writer is full, rest of the batch of {} events is dropped",
+                                events.size());
+                        droppedBatches.increment();
+                        reportBuffers();
+                        return;
+                    }
+                    blocked += sendTime;
+                }
+            }
+        }
+
+        if (blocked > 0) {
+            blockedNanos.add(blocked);
+            metrics.gauge("blocked_time_ms", TimeUnit.NANOSECONDS.toMillis(blockedNanos.sum()));
+            logger.debug("Output of {} events was blocked by full buffer of the writer for {} ms", events.size(),
+                    TimeUnit.NANOSECONDS.toMillis(blocked));
+        }
+        reportBuffers();
+    }
+
+    /**
+     * Fill of the writer buffers is the count and the size of sent but not acknowledged messages of all writers
+     */
+    private void reportBuffers() {
+        long messages = 0;
+        long bytes = 0;
+        for (PooledWriter writer : writers) {
+            messages += writer.inflightMessages.sum();
+            bytes += writer.inflightBytes.sum();
+        }
+        metrics.gauge("buffer_messages", messages);
+        metrics.gauge("buffer_bytes", bytes);
+    }
+
+    /**
+     * @return time of blocking in nanoseconds or -1 if the buffer is full and the rest of the batch must be dropped
+     */
+    private long send(PooledWriter writer, Message message) {
+        if (message.getData().length > maxMessageBytes) {
+            dropOversized(message);
+            return 0;
+        }
+
+        long blocked = 0;
+        while (!writer.trySend(message)) {
+            if (!blockOnOverflow) {
+                return -1;
+            }
+
+            if (writer.inflightMessages.sum() == 0) {
+                // nothing is in flight, so waiting for acks can't free more space than the empty buffer has
+                if (!writer.trySend(message)) {
+                    dropOversized(message);
+                }
+                return blocked;
+            }
+
+            // worker is blocked until the oldest message is acknowledged, so pipeline gets the backpressure
+            long start = System.nanoTime();
+            writer.awaitOldestAck();
+            blocked += System.nanoTime() - start;
+        }
+        return blocked;
+    }
+
+    private void dropOversized(Message message) {
+        logger.error("Message of {} bytes doesn't fit into the buffer of the writer and is dropped",
+                message.getData().length);
+        oversizedMessages.increment();
+    }
+
+    private int selectWriter(Event event) {
+        if (writers.length == 1) {
+            return 0;
+        }
+
+        if (partitionKey != null) {
+            // events with the same key are always sent by the same writer and so keep their order
+            Object key = event.getField(partitionKey);
+            int hash = key != null ? key.hashCode() : 0;
+            return Math.floorMod(hash, writers.length);
         }
+
+        return Math.floorMod(nextWriter.getAndIncrement(), writers.length);
     }
 
     @Override
     public void stop() {
-        asyncWriter.shutdown().thenRun(() -> {
-            topicClient.close();
-            transport.close();
+        long blockedMs = TimeUnit.NANOSECONDS.toMillis(blockedNanos.sum());
+        if (blockedMs > 0) {
+            logger.info("Output {} was blocked by full buffer of the writer for {} ms in total", id, blockedMs);
+        }
+
+        CompletableFuture<?>[] shutdowns = new CompletableFuture<?>[writers.length];
+        for (int idx = 0; idx < writers.length; idx++) {
+            shutdowns[idx] = writers[idx].writer.shutdown();
+        }
+
+        CompletableFuture.allOf(shutdowns).thenRun(() -> {
+            connection.close();
             stopped.countDown();
         });
     }
@@ -109,7 +347,55 @@ public class YdbTopic implements Output {
                 TOKEN_FILE,
                 USE_METADATA,
 
-                TOPIC_PATH
+                TOPIC_PATH,
+                CODEC,
+                COMPRESSION_THREADS,
+                BLOCK_ON_OVERFLOW,
+                MAX_BUFFER_BYTES,
+                MAX_BUFFER_MESSAGES,
+                WRITERS,
+                PRODUCER_ID,
+                PARTITION_KEY,
+                BATCH_FORMAT,
+                BATCH_MAX_EVENTS,
+                BATCH_MAX_BYTES
+        );
+    }
+
+    private static int parseCodec(String codec) {
+        switch (codec.toUpperCase()) {
+            case "RAW":
+                return Codec.RAW;
+            case "GZIP":
+                return Codec.GZIP;
+            case "LZOP":
+                return Codec.LZOP;
+            case "ZSTD":
+                return Codec.ZSTD;
+            default:
+                throw new IllegalStateException("Unsupported codec " + codec + ", expected RAW, GZIP, LZOP or ZSTD");
+        }
+    }
+
+    private static boolean parseBatchFormat(String format) {
+        switch (format.toLowerCase()) {
+            case "none":
+                return false;
+            case "ndjson":
+                return true;
+            default:
+                throw new IllegalStateException("Unsupported batch format " + format + ", expected none or ndjson");
+        }
+    }
+
+    private static String connectionKey(Configuration config) {
+        return String.join("\n",
+                config.get(CONNECTION),
+                String.valueOf(config.get(SA_KEY_FILE)),
+                String.valueOf(config.get(TOKEN_AUTH)),
+                String.valueOf(config.get(TOKEN_FILE)),
+                String.valueOf(config.get(USE_METADATA)),
+                String.valueOf(config.get(COMPRESSION_THREADS))
         );
     }
 
@@ -142,4 +428,107 @@ public class YdbTopic implements Output {
 
         return NopAuthProvider.INSTANCE;
     }
+
+    /**
+     * Newline-delimited JSON events packed into one message
+     */
+    private final class NdjsonFrame {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private int count = 0;
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        /**
+         * @return the previous frame if the new event doesn't fit into it, otherwise null
+         */
+        Message append(byte[] json) {
+            Message full = null;
+            if (count > 0 && (count >= batchMaxEvents || buffer.size() + 1 + json.length > batchMaxBytes)) {
+                full = take();
+            }
+
+            if (count > 0) {
+                buffer.write('\n');
+            }
+            buffer.write(json, 0, json.length);
+            count++;
+            return full;
+        }
+
+        Message take() {
+            Message message = Message.of(buffer.toByteArray());
+            buffer.reset();
+            count = 0;
+            return message;
+        }
+    }
+
+    /**
+     * Writer with the acks of sent messages in order of sending, they are used to wait for free space in the buffer
+     */
+    private final class PooledWriter {
+        private final AsyncWriter writer;
+        private final ArrayDeque<CompletableFuture<WriteAck>> inflight = new ArrayDeque<>();
+        private final LongAdder inflightMessages = new LongAdder();
+        private final LongAdder inflightBytes = new LongAdder();
+
+        PooledWriter(AsyncWriter writer) {
+            this.writer = writer;
+            this.writer.init();
+        }
+
+        private boolean trySend(Message message) {
+            int size = message.getData().length;
+            long startNanos = System.nanoTime();
+            CompletableFuture<WriteAck> ack;
+            try {
+                ack = writer.send(message);
+            } catch (QueueOverflowException e) {
+                return false;
+            }
+
+            messagesSent.increment();
+            bytesSent.increment(size);
+            inflightMessages.increment();
+            inflightBytes.add(size);
+            ack.whenComplete((res, th) -> {
+                inflightMessages.decrement();
+                inflightBytes.add(-size);
+                writeLatency.record(System.nanoTime() - startNanos);
+                if (th != null) {
+                    writeErrors.increment();
+                    logger.error("Error sending message to YDB Topics: " + th.getMessage(), th);
+                }
+            });
+
+            synchronized (inflight) {
+                while (!inflight.isEmpty() && inflight.peekFirst().isDone()) {
+                    inflight.pollFirst();
+                }
+                inflight.addLast(ack);
+            }
+            return true;
+        }
+
+        private void awaitOldestAck() {
+            CompletableFuture<WriteAck> oldest;
+            synchronized (inflight) {
+                oldest = inflight.pollFirst();
+            }
+
+            if (oldest == null) {
+                // all acks are taken by other workers, just wait a little before the next attempt
+                LockSupport.parkNanos(OVERFLOW_RETRY_DELAY_NANOS);
+                return;
+            }
+
+            try {
+                oldest.join();
+            } catch (CompletionException | CancellationException e) {
+                // already logged by the ack handler
+            }
+        }
+    }
 }
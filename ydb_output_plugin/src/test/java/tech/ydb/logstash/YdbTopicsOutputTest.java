@@ -1,16 +1,23 @@
 package tech.ydb.logstash;
 
+import java.math.BigInteger;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
 import org.logstash.Event;
+import org.logstash.Timestamp;
 import org.logstash.plugins.ConfigurationImpl;
 
 import tech.ydb.test.junit5.GrpcTransportExtension;
@@ -118,4 +125,321 @@ public class YdbTopicsOutputTest {
             client.dropTopic(topicPath).join().expectSuccess("cannot drop topic");
         }
     }
+
+    @Test
+    public void jsonSerializationTest() {
+        Map<String, Object> inner = new HashMap<>();
+        inner.put("z", false);
+        inner.put("a", Arrays.asList(1L, 2.5d, "x"));
+        Map<String, Object> nested = new HashMap<>();
+        nested.put("inner", inner);
+        nested.put("count", 3L);
+
+        Event event = new org.logstash.Event();
+        event.setEventTimestamp(TS1);
+        event.setField("flag", true);
+        event.setField("big", new BigInteger("123456789012345678901234567890"));
+        event.setField("created", new Timestamp(TS2.toEpochMilli()));
+        event.setField("nested", nested);
+        event.setField("tags", Arrays.asList("a", "b"));
+
+        // fields and keys of nested maps are written in the order of names, the event time is written as millis
+        Assertions.assertEquals("{"
+                + "\"big\":123456789012345678901234567890,"
+                + "\"created\":\"2020-02-13T13:44:57.120Z\","
+                + "\"flag\":true,"
+                + "\"nested\":{\"count\":3,\"inner\":{\"a\":[1,2.5,\"x\"],\"z\":false}},"
+                + "\"tags\":[\"a\",\"b\"],"
+                + "\"timestamp\":1581601437567"
+                + "}", new String(MessageProcessor.toJsonBytes(event), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void compressedTest() throws InterruptedException, UnknownHostException {
+        String topicPath = ydb.database() + "/test/compressed-topic";
+
+        // create topic
+        TopicClient client = TopicClient.newClient(transport).build();
+        client.createTopic(topicPath, CreateTopicSettings.newBuilder()
+                .addConsumer(Consumer.newBuilder().setName("test_consumer").build())
+                .build())
+                .join().expectSuccess("cannot create topic");
+        try {
+            SyncReader reader = client.createSyncReader(ReaderSettings.newBuilder()
+                    .setConsumerName("test_consumer")
+                    .addTopic(TopicReadSettings.newBuilder().setPath(topicPath).build())
+                    .build());
+            reader.init();
+
+            Map<String, Object> config = createConfigMap();
+            config.put(YdbTopic.TOPIC_PATH.name(), topicPath);
+            config.put(YdbTopic.CODEC.name(), "gzip");
+            config.put(YdbTopic.COMPRESSION_THREADS.name(), 2L);
+
+            YdbTopic plugin = new YdbTopic("test-compressed", new ConfigurationImpl(config), null);
+
+            Event ev1 = new org.logstash.Event();
+            ev1.setEventTimestamp(TS1);
+            ev1.setField("device", "dev1");
+            ev1.setField("priority", 1);
+
+            plugin.output(Arrays.asList(ev1));
+
+            Message m1 = reader.receive(1, TimeUnit.SECONDS);
+            Assertions.assertNotNull(m1);
+            Assertions.assertEquals(
+                    "{\"device\":\"dev1\",\"priority\":1,\"timestamp\":1581601437567}",
+                    new String(m1.getData())
+            );
+
+            plugin.stop();
+            plugin.awaitStop();
+
+            reader.shutdown();
+        } finally {
+            // drop topic
+            client.dropTopic(topicPath).join().expectSuccess("cannot drop topic");
+        }
+    }
+
+    @Test
+    public void backpressureTest() throws InterruptedException, UnknownHostException {
+        String topicPath = ydb.database() + "/test/backpressure-topic";
+
+        // create topic
+        TopicClient client = TopicClient.newClient(transport).build();
+        client.createTopic(topicPath, CreateTopicSettings.newBuilder()
+                .addConsumer(Consumer.newBuilder().setName("test_consumer").build())
+                .build())
+                .join().expectSuccess("cannot create topic");
+        try {
+            SyncReader reader = client.createSyncReader(ReaderSettings.newBuilder()
+                    .setConsumerName("test_consumer")
+                    .addTopic(TopicReadSettings.newBuilder().setPath(topicPath).build())
+                    .build());
+            reader.init();
+
+            Map<String, Object> config = createConfigMap();
+            config.put(YdbTopic.TOPIC_PATH.name(), topicPath);
+            config.put(YdbTopic.MAX_BUFFER_MESSAGES.name(), 2L);
+
+            YdbTopic plugin = new YdbTopic("test-backpressure", new ConfigurationImpl(config), null);
+
+            // buffer of the writer is much smaller than the batch, but no one event must be lost
+            List<co.elastic.logstash.api.Event> events = new ArrayList<>();
+            for (int idx = 0; idx < 100; idx++) {
+                Event ev = new org.logstash.Event();
+                ev.setEventTimestamp(TS1);
+                ev.setField("idx", idx);
+                events.add(ev);
+            }
+            plugin.output(events);
+
+            for (int idx = 0; idx < 100; idx++) {
+                Message msg = reader.receive(1, TimeUnit.SECONDS);
+                Assertions.assertNotNull(msg);
+                Assertions.assertEquals("{\"idx\":" + idx + ",\"timestamp\":1581601437567}",
+                        new String(msg.getData()));
+            }
+
+            plugin.stop();
+            plugin.awaitStop();
+
+            reader.shutdown();
+        } finally {
+            // drop topic
+            client.dropTopic(topicPath).join().expectSuccess("cannot drop topic");
+        }
+    }
+
+    @Test
+    public void multipleWritersTest() throws InterruptedException, UnknownHostException {
+        String topicPath = ydb.database() + "/test/writers-topic";
+
+        // create topic
+        TopicClient client = TopicClient.newClient(transport).build();
+        client.createTopic(topicPath, CreateTopicSettings.newBuilder()
+                .addConsumer(Consumer.newBuilder().setName("test_consumer").build())
+                .build())
+                .join().expectSuccess("cannot create topic");
+        try {
+            SyncReader reader = client.createSyncReader(ReaderSettings.newBuilder()
+                    .setConsumerName("test_consumer")
+                    .addTopic(TopicReadSettings.newBuilder().setPath(topicPath).build())
+                    .build());
+            reader.init();
+
+            Map<String, Object> config = createConfigMap();
+            config.put(YdbTopic.TOPIC_PATH.name(), topicPath);
+            config.put(YdbTopic.WRITERS.name(), 3L);
+            config.put(YdbTopic.PARTITION_KEY.name(), "device");
+            config.put(YdbTopic.PRODUCER_ID.name(), "node-a");
+
+            YdbTopic plugin = new YdbTopic("test-writers", new ConfigurationImpl(config), null);
+
+            List<co.elastic.logstash.api.Event> events = new ArrayList<>();
+            for (int idx = 0; idx < 30; idx++) {
+                Event ev = new org.logstash.Event();
+                ev.setEventTimestamp(TS1);
+                ev.setField("device", "dev" + (idx % 4));
+                ev.setField("idx", idx);
+                events.add(ev);
+            }
+            plugin.output(events);
+
+            // messages of the different writers may be mixed, but messages of one device must keep their order
+            Pattern pattern = Pattern.compile("\\{\"device\":\"(dev\\d)\",\"idx\":(\\d+),\"timestamp\":1581601437567}");
+            Map<String, Integer> lastIdx = new HashMap<>();
+            for (int idx = 0; idx < 30; idx++) {
+                Message msg = reader.receive(1, TimeUnit.SECONDS);
+                Assertions.assertNotNull(msg);
+
+                Matcher matcher = pattern.matcher(new String(msg.getData()));
+                Assertions.assertTrue(matcher.matches());
+                // producer id of every writer is the configured prefix and the index of the writer
+                Assertions.assertTrue(msg.getProducerId().matches("node-a-[0-2]"), msg.getProducerId());
+
+                int msgIdx = Integer.parseInt(matcher.group(2));
+                Integer prevIdx = lastIdx.put(matcher.group(1), msgIdx);
+                if (prevIdx != null) {
+                    Assertions.assertTrue(prevIdx < msgIdx);
+                }
+            }
+            Assertions.assertEquals(4, lastIdx.size());
+
+            plugin.stop();
+            plugin.awaitStop();
+
+            reader.shutdown();
+        } finally {
+            // drop topic
+            client.dropTopic(topicPath).join().expectSuccess("cannot drop topic");
+        }
+    }
+
+    @Test
+    public void oversizedMessageTest() throws InterruptedException, UnknownHostException {
+        String topicPath = ydb.database() + "/test/oversized-topic";
+
+        // create topic
+        TopicClient client = TopicClient.newClient(transport).build();
+        client.createTopic(topicPath, CreateTopicSettings.newBuilder()
+                .addConsumer(Consumer.newBuilder().setName("test_consumer").build())
+                .build())
+                .join().expectSuccess("cannot create topic");
+        try {
+            SyncReader reader = client.createSyncReader(ReaderSettings.newBuilder()
+                    .setConsumerName("test_consumer")
+                    .addTopic(TopicReadSettings.newBuilder().setPath(topicPath).build())
+                    .build());
+            reader.init();
+
+            Map<String, Object> config = createConfigMap();
+            config.put(YdbTopic.TOPIC_PATH.name(), topicPath);
+            config.put(YdbTopic.MAX_BUFFER_BYTES.name(), 1024L);
+
+            // batch can't be greater than the buffer of the writer
+            config.put(YdbTopic.BATCH_FORMAT.name(), "ndjson");
+            Assertions.assertThrows(IllegalStateException.class,
+                    () -> new YdbTopic("test-oversized", new ConfigurationImpl(config), null));
+
+            config.put(YdbTopic.BATCH_MAX_BYTES.name(), 1024L);
+            YdbTopic plugin = new YdbTopic("test-oversized", new ConfigurationImpl(config), null);
+
+            // event greater than the buffer is dropped, the rest of the batch is sent
+            char[] big = new char[2000];
+            Arrays.fill(big, 'x');
+            List<co.elastic.logstash.api.Event> events = new ArrayList<>();
+            for (int idx = 0; idx < 3; idx++) {
+                Event ev = new org.logstash.Event();
+                ev.setEventTimestamp(TS1);
+                ev.setField("idx", idx);
+                if (idx == 1) {
+                    ev.setField("payload", new String(big));
+                }
+                events.add(ev);
+            }
+            plugin.output(events);
+
+            Message m1 = reader.receive(1, TimeUnit.SECONDS);
+            Message m2 = reader.receive(1, TimeUnit.SECONDS);
+            Assertions.assertNotNull(m1);
+            Assertions.assertNotNull(m2);
+            Assertions.assertEquals("{\"idx\":0,\"timestamp\":1581601437567}", new String(m1.getData()));
+            Assertions.assertEquals("{\"idx\":2,\"timestamp\":1581601437567}", new String(m2.getData()));
+            Assertions.assertNull(reader.receive(100, TimeUnit.MILLISECONDS));
+
+            plugin.stop();
+            plugin.awaitStop();
+
+            reader.shutdown();
+        } finally {
+            // drop topic
+            client.dropTopic(topicPath).join().expectSuccess("cannot drop topic");
+        }
+    }
+
+    @Test
+    public void ndjsonBatchesTest() throws InterruptedException, UnknownHostException {
+        String topicPath = ydb.database() + "/test/ndjson-topic";
+
+        // create topic
+        TopicClient client = TopicClient.newClient(transport).build();
+        client.createTopic(topicPath, CreateTopicSettings.newBuilder()
+                .addConsumer(Consumer.newBuilder().setName("test_consumer").build())
+                .build())
+                .join().expectSuccess("cannot create topic");
+        try {
+            SyncReader reader = client.createSyncReader(ReaderSettings.newBuilder()
+                    .setConsumerName("test_consumer")
+                    .addTopic(TopicReadSettings.newBuilder().setPath(topicPath).build())
+                    .build());
+            reader.init();
+
+            Map<String, Object> config = createConfigMap();
+            config.put(YdbTopic.TOPIC_PATH.name(), topicPath);
+            config.put(YdbTopic.BATCH_FORMAT.name(), "ndjson");
+            config.put(YdbTopic.BATCH_MAX_EVENTS.name(), 2L);
+
+            YdbTopic plugin = new YdbTopic("test-ndjson", new ConfigurationImpl(config), null);
+
+            List<co.elastic.logstash.api.Event> events = new ArrayList<>();
+            for (int idx = 0; idx < 5; idx++) {
+                Event ev = new org.logstash.Event();
+                ev.setEventTimestamp(TS1);
+                ev.setField("idx", idx);
+                events.add(ev);
+            }
+            plugin.output(events);
+
+            Message m1 = reader.receive(1, TimeUnit.SECONDS);
+            Message m2 = reader.receive(1, TimeUnit.SECONDS);
+            Message m3 = reader.receive(1, TimeUnit.SECONDS);
+
+            Assertions.assertNotNull(m1);
+            Assertions.assertNotNull(m2);
+            Assertions.assertNotNull(m3);
+
+            Assertions.assertEquals(
+                    "{\"idx\":0,\"timestamp\":1581601437567}\n{\"idx\":1,\"timestamp\":1581601437567}",
+                    new String(m1.getData())
+            );
+            Assertions.assertEquals(
+                    "{\"idx\":2,\"timestamp\":1581601437567}\n{\"idx\":3,\"timestamp\":1581601437567}",
+                    new String(m2.getData())
+            );
+            Assertions.assertEquals(
+                    "{\"idx\":4,\"timestamp\":1581601437567}",
+                    new String(m3.getData())
+            );
+
+            plugin.stop();
+            plugin.awaitStop();
+
+            reader.shutdown();
+        } finally {
+            // drop topic
+            client.dropTopic(topicPath).join().expectSuccess("cannot drop topic");
+        }
+    }
 }
@@ -0,0 +1,146 @@
+package tech.ydb.logstash;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import tech.ydb.core.StatusCode;
+
+/**
+ * AIMD controller of the count of rows in one BulkUpsert request and of the count of concurrent requests. Every
+ * request which is completed successfully within the target latency additively increases the rows limit, when the
+ * rows limit reaches the maximum the concurrency is increased by one per full window of requests. A slow request
+ * halves the concurrency (or the rows limit when the concurrency is already one), an overloaded response halves both.
+ *
+ * Decreases are applied only for requests started after the previous decrease, so one burst of slow responses of
+ * already sent requests halves the limits only once.
+ */
+public class AdaptiveBatching {
+    private static final Set<StatusCode> OVERLOADED_STATUSES = EnumSet.of(
+            StatusCode.OVERLOADED,
+            StatusCode.CLIENT_RESOURCE_EXHAUSTED,
+            StatusCode.CLIENT_LIMITS_REACHED,
+            StatusCode.TIMEOUT
+    );
+
+    /**
+     * Start of one request
+     */
+    public static final class Sample {
+        private final long generation;
+        private final long startNanos;
+
+        Sample(long generation, long startNanos) {
+            this.generation = generation;
+            this.startNanos = startNanos;
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(AdaptiveBatching.class);
+
+    private final int minRows;
+    private final int maxRows;
+    private final int maxConcurrency;
+    private final long targetLatencyNanos;
+
+    private int rowsLimit;
+    private int concurrencyLimit;
+    private int inflight = 0;
+    private int successes = 0;
+    private long generation = 0;
+
+    public AdaptiveBatching(int minRows, int maxRows, int maxConcurrency, long targetLatencyNanos) {
+        this.minRows = minRows;
+        this.maxRows = maxRows;
+        this.maxConcurrency = maxConcurrency;
+        this.targetLatencyNanos = targetLatencyNanos;
+
+        this.rowsLimit = maxRows;
+        this.concurrencyLimit = maxConcurrency;
+    }
+
+    public synchronized int rowsLimit() {
+        return rowsLimit;
+    }
+
+    public synchronized int concurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * Waits for the free slot of the concurrency limit
+     */
+    public synchronized void acquire() {
+        boolean interrupted = false;
+        while (inflight >= concurrencyLimit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        inflight++;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized boolean tryAcquire() {
+        if (inflight >= concurrencyLimit) {
+            return false;
+        }
+        inflight++;
+        return true;
+    }
+
+    public synchronized void release() {
+        inflight--;
+        notifyAll();
+    }
+
+    public synchronized Sample start() {
+        return new Sample(generation, System.nanoTime());
+    }
+
+    public synchronized void complete(Sample sample, StatusCode code) {
+        long latency = System.nanoTime() - sample.startNanos;
+        boolean overloaded = OVERLOADED_STATUSES.contains(code);
+
+        if (overloaded || latency > targetLatencyNanos) {
+            if (sample.generation != generation) {
+                return;
+            }
+            generation++;
+            successes = 0;
+
+            if (overloaded || concurrencyLimit == 1) {
+                rowsLimit = Math.max(minRows, rowsLimit / 2);
+            }
+            if (overloaded || concurrencyLimit > 1) {
+                concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+            }
+            logger.debug("batching is decreased to {} rows x {} requests, latency {} ms, status {}", rowsLimit,
+                    concurrencyLimit, latency / 1000000, code);
+            return;
+        }
+
+        if (code != StatusCode.SUCCESS) {
+            return;
+        }
+
+        if (rowsLimit < maxRows) {
+            rowsLimit = Math.min(maxRows, rowsLimit + minRows);
+            return;
+        }
+
+        successes++;
+        if (concurrencyLimit < maxConcurrency && successes >= concurrencyLimit) {
+            successes = 0;
+            concurrencyLimit++;
+            notifyAll();
+            logger.debug("batching is increased to {} rows x {} requests", rowsLimit, concurrencyLimit);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package tech.ydb.logstash;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+import tech.ydb.table.values.OptionalType;
+import tech.ydb.table.values.OptionalValue;
+import tech.ydb.table.values.PrimitiveType;
+import tech.ydb.table.values.PrimitiveValue;
+import tech.ydb.table.values.StructType;
+import tech.ydb.table.values.Type;
+import tech.ydb.table.values.Value;
+
+/**
+ * Builder of the CSV payload of one BulkUpsert request. The first line is the header with the column names, values of
+ * every row are written in the order of the row type members, empty optional values are written as
+ * {@link #NULL_VALUE}. The server parses CSV data to the columnar batch at once, so for column-oriented tables it is
+ * much cheaper than the list of structs. String equal to {@link #NULL_VALUE} can't be distinguished from NULL, so rows
+ * with such values must be detected by {@link #isWritable} and sent in other format.
+ */
+public class CsvBatchBuilder {
+    static final String NULL_VALUE = "\\N";
+
+    private static final byte[] NULL_BYTES = NULL_VALUE.getBytes(StandardCharsets.US_ASCII);
+    private static final byte QUOTE = '"';
+    private static final byte DELIMITER = ',';
+    private static final byte NEW_LINE = '\n';
+
+    private final byte[] header;
+
+    private byte[] buffer;
+    private int size = 0;
+    private int rows = 0;
+
+    public CsvBatchBuilder(StructType rowType) {
+        StringBuilder sb = new StringBuilder();
+        for (int idx = 0; idx < rowType.getMembersCount(); idx++) {
+            if (idx > 0) {
+                sb.append((char) DELIMITER);
+            }
+            sb.append(rowType.getMemberName(idx));
+        }
+        sb.append((char) NEW_LINE);
+
+        this.header = sb.toString().getBytes(StandardCharsets.UTF_8);
+        this.buffer = new byte[Math.max(4096, header.length * 4)];
+        reset();
+    }
+
+    public int rowsCount() {
+        return rows;
+    }
+
+    public void addRow(Value<?>[] fields) {
+        for (int idx = 0; idx < fields.length; idx++) {
+            if (idx > 0) {
+                writeByte(DELIMITER);
+            }
+            writeValue(fields[idx]);
+        }
+        writeByte(NEW_LINE);
+        rows++;
+    }
+
+    /**
+     * Returns the payload with all added rows and starts a new one
+     */
+    public byte[] build() {
+        byte[] data = Arrays.copyOf(buffer, size);
+        reset();
+        return data;
+    }
+
+    private void reset() {
+        System.arraycopy(header, 0, buffer, 0, header.length);
+        size = header.length;
+        rows = 0;
+    }
+
+    /**
+     * @return false if any string value of the row is equal to {@link #NULL_VALUE}
+     */
+    public static boolean isWritable(Value<?>[] fields) {
+        for (Value<?> field : fields) {
+            Value<?> value = field;
+            if (value instanceof OptionalValue && ((OptionalValue) value).isPresent()) {
+                value = ((OptionalValue) value).get();
+            }
+            if (value instanceof PrimitiveValue && isNullValue((PrimitiveValue) value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNullValue(PrimitiveValue value) {
+        switch (value.getType()) {
+            case Text: return NULL_VALUE.equals(value.getText());
+            case Json: return NULL_VALUE.equals(value.getJson());
+            case JsonDocument: return NULL_VALUE.equals(value.getJsonDocument());
+            case Bytes: return Arrays.equals(NULL_BYTES, value.getBytesUnsafe());
+            default: return false;
+        }
+    }
+
+    public static boolean isSupported(Type type) {
+        Type itemType = type instanceof OptionalType ? ((OptionalType) type).getItemType() : type;
+        if (!(itemType instanceof PrimitiveType)) {
+            return false;
+        }
+
+        switch ((PrimitiveType) itemType) {
+            case Bool:
+            case Int8:
+            case Int16:
+            case Int32:
+            case Int64:
+            case Uint8:
+            case Uint16:
+            case Uint32:
+            case Uint64:
+            case Float:
+            case Double:
+            case Date:
+            case Datetime:
+            case Timestamp:
+            case Text:
+            case Bytes:
+            case Json:
+            case JsonDocument:
+            case Uuid:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void writeValue(Value<?> value) {
+        if (value instanceof OptionalValue) {
+            OptionalValue optional = (OptionalValue) value;
+            if (!optional.isPresent()) {
+                writeBytes(NULL_BYTES);
+                return;
+            }
+            writeValue(optional.get());
+            return;
+        }
+
+        PrimitiveValue primitive = (PrimitiveValue) value;
+        switch (primitive.getType()) {
+            case Bool: writeAscii(primitive.getBool() ? "true" : "false"); break;
+            case Int8: writeAscii(Byte.toString(primitive.getInt8())); break;
+            case Int16: writeAscii(Short.toString(primitive.getInt16())); break;
+            case Int32: writeAscii(Integer.toString(primitive.getInt32())); break;
+            case Int64: writeAscii(Long.toString(primitive.getInt64())); break;
+            case Uint8: writeAscii(Integer.toString(primitive.getUint8())); break;
+            case Uint16: writeAscii(Integer.toString(primitive.getUint16())); break;
+            case Uint32: writeAscii(Long.toString(primitive.getUint32())); break;
+            case Uint64: writeAscii(Long.toUnsignedString(primitive.getUint64())); break;
+            case Float: writeAscii(Float.toString(primitive.getFloat())); break;
+            case Double: writeAscii(Double.toString(primitive.getDouble())); break;
+            case Date: writeAscii(primitive.getDate().toString()); break;
+            case Datetime: writeAscii(primitive.getDatetime().toInstant(ZoneOffset.UTC).toString()); break;
+            case Timestamp: writeAscii(primitive.getTimestamp().toString()); break;
+            case Uuid: writeAscii(primitive.getUuidString()); break;
+            case Text: writeQuoted(primitive.getText().getBytes(StandardCharsets.UTF_8)); break;
+            case Json: writeQuoted(primitive.getJson().getBytes(StandardCharsets.UTF_8)); break;
+            case JsonDocument: writeQuoted(primitive.getJsonDocument().getBytes(StandardCharsets.UTF_8)); break;
+            case Bytes: writeQuoted(primitive.getBytesUnsafe()); break;
+            default:
+                throw new IllegalStateException("Unsupported type " + primitive.getType() + " for CSV format");
+        }
+    }
+
+    /**
+     * Strings are always quoted, quotes inside are doubled. The quote byte never appears inside of multibyte UTF-8
+     * sequences, so the escaping works directly with the encoded bytes.
+     */
+    private void writeQuoted(byte[] bytes) {
+        int quotes = 0;
+        for (byte b : bytes) {
+            if (b == QUOTE) {
+                quotes++;
+            }
+        }
+
+        ensureCapacity(bytes.length + quotes + 2);
+        buffer[size++] = QUOTE;
+        if (quotes == 0) {
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        } else {
+            for (byte b : bytes) {
+                if (b == QUOTE) {
+                    buffer[size++] = QUOTE;
+                }
+                buffer[size++] = b;
+            }
+        }
+        buffer[size++] = QUOTE;
+    }
+
+    private void writeAscii(String value) {
+        int length = value.length();
+        ensureCapacity(length);
+        for (int idx = 0; idx < length; idx++) {
+            buffer[size++] = (byte) value.charAt(idx);
+        }
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    private void writeByte(byte b) {
+        ensureCapacity(1);
+        buffer[size++] = b;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+}
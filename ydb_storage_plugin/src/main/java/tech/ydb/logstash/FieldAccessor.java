@@ -0,0 +1,43 @@
+package tech.ydb.logstash;
+
+import co.elastic.logstash.api.Event;
+import org.logstash.FieldReference;
+import org.logstash.Javafier;
+
+/**
+ * Accessor of one event field. The field reference (plain name or nested path like {@code [a][b]}) is parsed once,
+ * so reading of the field doesn't parse or look up the reference string for every event.
+ */
+public final class FieldAccessor {
+    private final String reference;
+    private final FieldReference parsed;
+
+    private FieldAccessor(String reference, FieldReference parsed) {
+        this.reference = reference;
+        this.parsed = parsed;
+    }
+
+    public static FieldAccessor of(String reference) {
+        if (reference == null || reference.isEmpty()) {
+            throw new IllegalStateException("Empty field reference");
+        }
+        try {
+            return new FieldAccessor(reference, FieldReference.from(reference));
+        } catch (RuntimeException ex) {
+            throw new IllegalStateException("Invalid field reference " + reference, ex);
+        }
+    }
+
+    public String reference() {
+        return reference;
+    }
+
+    public Object get(Event event) {
+        if (event instanceof org.logstash.Event) {
+            // the same as Event.getField, but with already parsed reference
+            Object value = ((org.logstash.Event) event).getUnconvertedField(parsed);
+            return value == null ? null : Javafier.deep(value);
+        }
+        return event.getField(reference);
+    }
+}
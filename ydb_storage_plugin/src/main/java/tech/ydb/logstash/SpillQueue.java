@@ -0,0 +1,301 @@
+package tech.ydb.logstash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-ahead queue of records in memory-mapped segment files. Records are appended to the last segment and read in
+ * the same order from the first one. Consumed records are marked in place, so the queue is restored after restart of
+ * the process, segment file is deleted when all its records are consumed. Rejected records are moved to own files in
+ * the {@code rejected} subdirectory and are not read by the queue anymore.
+ *
+ * Record layout is {@code int size, byte state, byte format, payload}, the size includes the header. The size is
+ * written after the payload, so zero size marks the end of written records in the segment.
+ */
+public class SpillQueue implements AutoCloseable {
+    public static final class Record {
+        private final byte format;
+        private final byte[] data;
+
+        Record(byte format, byte[] data) {
+            this.format = format;
+            this.data = data;
+        }
+
+        public byte format() {
+            return format;
+        }
+
+        public byte[] data() {
+            return data;
+        }
+    }
+
+    private static final class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int readPosition = 0;
+        private int writePosition = 0;
+        private boolean sealed = false;
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final int HEADER_SIZE = 6;
+    private static final byte STATE_READY = 1;
+    private static final byte STATE_CONSUMED = 2;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String REJECTED_DIRECTORY = "rejected";
+    private static final String REJECTED_SUFFIX = ".rec";
+
+    private final Logger logger = LoggerFactory.getLogger(SpillQueue.class);
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    private long nextSegmentId = 0;
+    private long pendingRecords = 0;
+    private long pendingBytes = 0;
+
+    public SpillQueue(Path directory, int segmentSize, long maxBytes) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+
+        try {
+            Files.createDirectories(directory);
+            for (Path path : listSegments(directory)) {
+                restoreSegment(path);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open spill queue in " + directory, e);
+        }
+
+        if (pendingRecords > 0) {
+            logger.info("spill queue {} has {} records of {} bytes", directory, pendingRecords, pendingBytes);
+        }
+    }
+
+    private static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        // segment names are zero-padded ids, so the order of names is the order of segments
+        Collections.sort(paths);
+        return paths;
+    }
+
+    private void restoreSegment(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        nextSegmentId = Math.max(nextSegmentId, id + 1);
+
+        Segment segment;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        }
+
+        int position = 0;
+        int firstReady = -1;
+        while (position + HEADER_SIZE <= segment.buffer.capacity()) {
+            int size = segment.buffer.getInt(position);
+            if (size < HEADER_SIZE || position + size > segment.buffer.capacity()) {
+                break;
+            }
+            if (segment.buffer.get(position + 4) == STATE_READY) {
+                firstReady = firstReady < 0 ? position : firstReady;
+                pendingRecords++;
+                pendingBytes += size - HEADER_SIZE;
+            }
+            position += size;
+        }
+
+        // restored segments are only read, new records are written to the new segment
+        segment.writePosition = position;
+        segment.readPosition = firstReady < 0 ? position : firstReady;
+        segment.sealed = true;
+
+        if (segment.readPosition >= segment.writePosition) {
+            deleteSegment(segment);
+        } else {
+            segments.addLast(segment);
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return pendingRecords == 0;
+    }
+
+    public synchronized long pendingRecords() {
+        return pendingRecords;
+    }
+
+    public synchronized long pendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Appends the record to the end of the queue
+     *
+     * @return false if the queue is full or the record cannot be written
+     */
+    public synchronized boolean offer(byte format, byte[] data) {
+        if (pendingBytes + data.length > maxBytes) {
+            return false;
+        }
+
+        int recordSize = HEADER_SIZE + data.length;
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.sealed || tail.writePosition + recordSize > tail.buffer.capacity()) {
+            if (tail != null && !tail.sealed) {
+                tail.sealed = true;
+                tail.buffer.force();
+            }
+            try {
+                tail = createSegment(Math.max(segmentSize, recordSize));
+            } catch (IOException e) {
+                logger.error("cannot create spill segment in {}", directory, e);
+                return false;
+            }
+            segments.addLast(tail);
+        }
+
+        int position = tail.writePosition;
+        ByteBuffer buffer = tail.buffer.duplicate();
+        buffer.position(position + 4);
+        buffer.put(STATE_READY);
+        buffer.put(format);
+        buffer.put(data);
+        tail.buffer.putInt(position, recordSize);
+
+        tail.writePosition += recordSize;
+        pendingRecords++;
+        pendingBytes += data.length;
+        return true;
+    }
+
+    /**
+     * Returns the first record of the queue without removing it
+     */
+    public synchronized Record peek() {
+        Segment head = firstSegment();
+        if (head == null || head.readPosition >= head.writePosition) {
+            return null;
+        }
+
+        int size = head.buffer.getInt(head.readPosition);
+        byte format = head.buffer.get(head.readPosition + 5);
+        byte[] data = new byte[size - HEADER_SIZE];
+        ByteBuffer buffer = head.buffer.duplicate();
+        buffer.position(head.readPosition + HEADER_SIZE);
+        buffer.get(data);
+        return new Record(format, data);
+    }
+
+    /**
+     * Marks the first record of the queue as consumed
+     */
+    public synchronized void remove() {
+        Segment head = firstSegment();
+        if (head == null || head.readPosition >= head.writePosition) {
+            return;
+        }
+
+        int size = head.buffer.getInt(head.readPosition);
+        head.buffer.put(head.readPosition + 4, STATE_CONSUMED);
+        head.readPosition += size;
+        pendingRecords--;
+        pendingBytes -= size - HEADER_SIZE;
+        firstSegment();
+    }
+
+    /**
+     * Removes the first record of the queue and saves it to the separate file with the same record layout
+     *
+     * @return path of the saved record or null if the queue is empty or the record cannot be saved
+     */
+    public synchronized Path reject() {
+        Segment head = firstSegment();
+        if (head == null || head.readPosition >= head.writePosition) {
+            return null;
+        }
+
+        int size = head.buffer.getInt(head.readPosition);
+        byte[] record = new byte[size];
+        ByteBuffer buffer = head.buffer.duplicate();
+        buffer.position(head.readPosition);
+        buffer.get(record);
+
+        String name = head.path.getFileName().toString();
+        Path path = directory.resolve(REJECTED_DIRECTORY).resolve(name.substring(0,
+                name.length() - SEGMENT_SUFFIX.length()) + "-" + head.readPosition + REJECTED_SUFFIX);
+        Path saved = null;
+        try {
+            Files.createDirectories(path.getParent());
+            Files.write(path, record);
+            saved = path;
+        } catch (IOException e) {
+            logger.error("cannot save rejected spill record to {}", path, e);
+        }
+
+        remove();
+        return saved;
+    }
+
+    /**
+     * Deletes fully consumed segments from the head of the queue, the last segment is kept while it is used for writes
+     */
+    private Segment firstSegment() {
+        Segment head = segments.peekFirst();
+        while (head != null && head.sealed && head.readPosition >= head.writePosition) {
+            segments.pollFirst();
+            deleteSegment(head);
+            head = segments.peekFirst();
+        }
+        return head;
+    }
+
+    private Segment createSegment(int size) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", nextSegmentId++, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // new file is filled by zeros, so the segment doesn't have any records
+            return new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            logger.warn("cannot delete spill segment {}", segment.path, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        segments.clear();
+    }
+}
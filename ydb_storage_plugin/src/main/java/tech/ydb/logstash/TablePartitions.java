@@ -0,0 +1,198 @@
+package tech.ydb.logstash;
+
+import java.util.List;
+import java.util.Optional;
+
+import tech.ydb.table.description.KeyBound;
+import tech.ydb.table.description.KeyRange;
+import tech.ydb.table.description.TableDescription;
+import tech.ydb.table.values.OptionalType;
+import tech.ydb.table.values.OptionalValue;
+import tech.ydb.table.values.PrimitiveType;
+import tech.ydb.table.values.PrimitiveValue;
+import tech.ydb.table.values.StructType;
+import tech.ydb.table.values.TupleValue;
+import tech.ydb.table.values.Type;
+import tech.ydb.table.values.Value;
+
+/**
+ * Key ranges of the table partitions. Used only to group rows by the partition they belong to, so a wrong routing
+ * affects only the count of shards touched by one BulkUpsert request but not the written data.
+ */
+public class TablePartitions {
+    private static final TablePartitions SINGLE = new TablePartitions(new int[0], new KeyBound[0]);
+
+    private final int[] keyIndexes;
+    private final KeyBound[] upperBounds;
+
+    private TablePartitions(int[] keyIndexes, KeyBound[] upperBounds) {
+        this.keyIndexes = keyIndexes;
+        this.upperBounds = upperBounds;
+    }
+
+    public int size() {
+        return upperBounds.length + 1;
+    }
+
+    public int partitionOf(Value<?>[] row) {
+        int low = 0;
+        int high = upperBounds.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (isBelow(row, upperBounds[mid])) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    private boolean isBelow(Value<?>[] row, KeyBound bound) {
+        int cmp = compareKey(row, bound.getValue());
+        return cmp < 0 || (cmp == 0 && bound.isInclusive());
+    }
+
+    private int compareKey(Value<?>[] row, Value<?> bound) {
+        if (!(bound instanceof TupleValue)) {
+            return compareValues(row[keyIndexes[0]], bound);
+        }
+
+        TupleValue tuple = (TupleValue) bound;
+        int size = Math.min(keyIndexes.length, tuple.size());
+        for (int idx = 0; idx < size; idx++) {
+            int cmp = compareValues(row[keyIndexes[idx]], tuple.get(idx));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    public static TablePartitions single() {
+        return SINGLE;
+    }
+
+    public static TablePartitions of(TableDescription description, StructType rowType) {
+        List<KeyRange> ranges = description.getKeyRanges();
+        List<String> primaryKeys = description.getPrimaryKeys();
+        if (ranges == null || ranges.size() < 2 || primaryKeys.isEmpty()) {
+            return SINGLE;
+        }
+
+        int[] keyIndexes = new int[primaryKeys.size()];
+        for (int idx = 0; idx < keyIndexes.length; idx++) {
+            keyIndexes[idx] = rowType.getMemberIndex(primaryKeys.get(idx));
+            if (keyIndexes[idx] < 0 || !isComparable(rowType.getMemberType(keyIndexes[idx]))) {
+                return SINGLE;
+            }
+        }
+
+        KeyBound[] upperBounds = new KeyBound[ranges.size() - 1];
+        for (int idx = 0; idx < upperBounds.length; idx++) {
+            Optional<KeyBound> to = ranges.get(idx).getTo();
+            if (!to.isPresent()) {
+                return SINGLE;
+            }
+            upperBounds[idx] = to.get();
+        }
+
+        return new TablePartitions(keyIndexes, upperBounds);
+    }
+
+    private static boolean isComparable(Type type) {
+        Type itemType = type instanceof OptionalType ? ((OptionalType) type).getItemType() : type;
+        if (!(itemType instanceof PrimitiveType)) {
+            return false;
+        }
+
+        switch ((PrimitiveType) itemType) {
+            case Bool:
+            case Int8:
+            case Int16:
+            case Int32:
+            case Int64:
+            case Uint8:
+            case Uint16:
+            case Uint32:
+            case Uint64:
+            case Date:
+            case Datetime:
+            case Timestamp:
+            case Text:
+            case Bytes:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static PrimitiveValue unwrap(Value<?> value) {
+        while (value instanceof OptionalValue) {
+            OptionalValue optional = (OptionalValue) value;
+            if (!optional.isPresent()) {
+                return null;
+            }
+            value = optional.get();
+        }
+        return (PrimitiveValue) value;
+    }
+
+    static int compareValues(Value<?> value1, Value<?> value2) {
+        PrimitiveValue v1 = unwrap(value1);
+        PrimitiveValue v2 = unwrap(value2);
+
+        // NULL is less than any other value
+        if (v1 == null || v2 == null) {
+            return v1 == null ? (v2 == null ? 0 : -1) : 1;
+        }
+
+        switch (v1.getType()) {
+            case Bool: return Boolean.compare(v1.getBool(), v2.getBool());
+            case Int8: return Byte.compare(v1.getInt8(), v2.getInt8());
+            case Int16: return Short.compare(v1.getInt16(), v2.getInt16());
+            case Int32: return Integer.compare(v1.getInt32(), v2.getInt32());
+            case Int64: return Long.compare(v1.getInt64(), v2.getInt64());
+            case Uint8: return Integer.compare(v1.getUint8(), v2.getUint8());
+            case Uint16: return Integer.compare(v1.getUint16(), v2.getUint16());
+            case Uint32: return Long.compare(v1.getUint32(), v2.getUint32());
+            case Uint64: return Long.compareUnsigned(v1.getUint64(), v2.getUint64());
+            case Date: return v1.getDate().compareTo(v2.getDate());
+            case Datetime: return v1.getDatetime().compareTo(v2.getDatetime());
+            case Timestamp: return v1.getTimestamp().compareTo(v2.getTimestamp());
+            case Text: return compareCodePoints(v1.getText(), v2.getText());
+            case Bytes: return compareUnsigned(v1.getBytesUnsafe(), v2.getBytesUnsafe());
+            default:
+                throw new IllegalStateException("Unsupported key type " + v1.getType());
+        }
+    }
+
+    /**
+     * YDB compares Text values as UTF-8 bytes, it is the same order as the order of code points
+     */
+    private static int compareCodePoints(String s1, String s2) {
+        int idx1 = 0;
+        int idx2 = 0;
+        while (idx1 < s1.length() && idx2 < s2.length()) {
+            int c1 = s1.codePointAt(idx1);
+            int c2 = s2.codePointAt(idx2);
+            if (c1 != c2) {
+                return Integer.compare(c1, c2);
+            }
+            idx1 += Character.charCount(c1);
+            idx2 += Character.charCount(c2);
+        }
+        return Boolean.compare(idx1 < s1.length(), idx2 < s2.length());
+    }
+
+    private static int compareUnsigned(byte[] b1, byte[] b2) {
+        int size = Math.min(b1.length, b2.length);
+        for (int idx = 0; idx < size; idx++) {
+            int cmp = Integer.compare(b1[idx] & 0xFF, b2[idx] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(b1.length, b2.length);
+    }
+}
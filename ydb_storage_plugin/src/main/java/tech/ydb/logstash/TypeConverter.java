@@ -3,7 +3,10 @@ package tech.ydb.logstash;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.function.Function;
 
 import tech.ydb.table.values.PrimitiveType;
 import tech.ydb.table.values.PrimitiveValue;
@@ -13,202 +16,258 @@ import tech.ydb.table.values.PrimitiveValue;
  * @author Aleksandr Gorshenin
  */
 public class TypeConverter {
+    /**
+     * Conversion of the value of one fixed Java class to one fixed YDB type
+     */
+    private interface Converter {
+        PrimitiveValue convert(Object data);
+    }
 
-    public static PrimitiveValue toValue(Object data, PrimitiveType type) {
-        if (data == null) {
-            return null;
-        }
-        if (data instanceof Boolean) {
-            return booleanToValue((Boolean) data, type);
-        }
-        if (data instanceof Byte) {
-            return byteToValue((Byte) data, type);
-        }
-        if (data instanceof Short) {
-            return shortToValue((Short) data, type);
-        }
-        if (data instanceof Integer) {
-            return integerToValue((Integer) data, type);
-        }
-        if (data instanceof Long) {
-            return longToValue((Long) data, type);
-        }
-        if (data instanceof Float) {
-            return floatToValue((Float) data, type);
+    /**
+     * Converter of the values of one column. Remembers the specialized converter for the class of the last value,
+     * so for the column with the values of the same class the conversion is one class check and one direct call.
+     */
+    public static final class ColumnConverter {
+        private final PrimitiveType type;
+        private CacheEntry cache = null;
+
+        private ColumnConverter(PrimitiveType type) {
+            this.type = type;
         }
-        if (data instanceof Double) {
-            return doubleToValue((Double) data, type);
+
+        public PrimitiveValue convert(Object data) {
+            if (data == null) {
+                return null;
+            }
+
+            CacheEntry entry = cache;
+            if (entry != null && entry.clazz == data.getClass()) {
+                return entry.converter.convert(data);
+            }
+
+            Converter converter = findConverter(data.getClass(), type);
+            if (converter == null) {
+                return null;
+            }
+            cache = new CacheEntry(data.getClass(), converter);
+            return converter.convert(data);
         }
-        if (data instanceof String) {
-            return stringToValue((String) data, type);
+    }
+
+    private static final class CacheEntry {
+        private final Class<?> clazz;
+        private final Converter converter;
+
+        CacheEntry(Class<?> clazz, Converter converter) {
+            this.clazz = clazz;
+            this.converter = converter;
         }
-        if (data instanceof byte[]) {
-            return bytesToValue((byte[]) data, type);
+    }
+
+    // All supported classes are final, so exact class lookup is the same as the instanceof check
+    private static final Map<Class<?>, Converter[]> CONVERTERS = new IdentityHashMap<>();
+
+    static {
+        register(Boolean.class, TypeConverter::booleanConverter);
+        register(Byte.class, TypeConverter::byteConverter);
+        register(Short.class, TypeConverter::shortConverter);
+        register(Integer.class, TypeConverter::integerConverter);
+        register(Long.class, TypeConverter::longConverter);
+        register(Float.class, TypeConverter::floatConverter);
+        register(Double.class, TypeConverter::doubleConverter);
+        register(String.class, TypeConverter::stringConverter);
+        register(byte[].class, TypeConverter::bytesConverter);
+        register(Instant.class, TypeConverter::instantConverter);
+        register(UUID.class, TypeConverter::uuidConverter);
+    }
+
+    public static ColumnConverter compile(PrimitiveType type) {
+        return new ColumnConverter(type);
+    }
+
+    public static PrimitiveValue toValue(Object data, PrimitiveType type) {
+        if (data == null) {
+            return null;
         }
-        if (data instanceof Instant) {
-            return instantToValue((Instant) data, type);
+        Converter converter = findConverter(data.getClass(), type);
+        if (converter == null) {
+            return null;
         }
-        if (data instanceof UUID) {
-            return uuidToValue((UUID) data, type);
+        return converter.convert(data);
+    }
+
+    private static Converter findConverter(Class<?> clazz, PrimitiveType type) {
+        Converter[] converters = CONVERTERS.get(clazz);
+        if (converters == null) {
+            return null;
         }
+        return converters[type.ordinal()];
+    }
 
-        return null;
+    private static void register(Class<?> clazz, Function<PrimitiveType, Converter> factory) {
+        PrimitiveType[] types = PrimitiveType.values();
+        Converter[] converters = new Converter[types.length];
+        for (PrimitiveType type : types) {
+            converters[type.ordinal()] = factory.apply(type);
+        }
+        CONVERTERS.put(clazz, converters);
     }
 
-    private static PrimitiveValue booleanToValue(Boolean data, PrimitiveType type) {
+    private static Converter booleanConverter(PrimitiveType type) {
         switch (type) {
-            case Bool: return PrimitiveValue.newBool(data);
-            case Text: return PrimitiveValue.newText(data.toString());
+            case Bool: return data -> PrimitiveValue.newBool((Boolean) data);
+            case Text: return data -> PrimitiveValue.newText(data.toString());
             default:
                 return null;
         }
     }
 
-    private static PrimitiveValue byteToValue(Byte data, PrimitiveType type) {
+    private static Converter byteConverter(PrimitiveType type) {
         switch (type) {
-            case Int8: return PrimitiveValue.newInt8(data);
-            case Int16: return PrimitiveValue.newInt16(data);
-            case Int32: return PrimitiveValue.newInt32(data);
-            case Int64: return PrimitiveValue.newInt64(data);
+            case Int8: return data -> PrimitiveValue.newInt8((Byte) data);
+            case Int16: return data -> PrimitiveValue.newInt16((Byte) data);
+            case Int32: return data -> PrimitiveValue.newInt32((Byte) data);
+            case Int64: return data -> PrimitiveValue.newInt64((Byte) data);
 
-            case Uint8: return PrimitiveValue.newUint8(data);
-            case Uint16: return PrimitiveValue.newUint16(data);
-            case Uint32: return PrimitiveValue.newUint32(data);
-            case Uint64: return PrimitiveValue.newUint64(data);
+            case Uint8: return data -> PrimitiveValue.newUint8((Byte) data);
+            case Uint16: return data -> PrimitiveValue.newUint16((Byte) data);
+            case Uint32: return data -> PrimitiveValue.newUint32((Byte) data);
+            case Uint64: return data -> PrimitiveValue.newUint64((Byte) data);
 
-            case Text: return PrimitiveValue.newText(String.valueOf(data));
+            case Text: return data -> PrimitiveValue.newText(String.valueOf(data));
 
-            case Float: return PrimitiveValue.newFloat(data);
-            case Double: return PrimitiveValue.newDouble(data);
+            case Float: return data -> PrimitiveValue.newFloat((Byte) data);
+            case Double: return data -> PrimitiveValue.newDouble((Byte) data);
             default:
                 return null;
         }
     }
 
-    private static PrimitiveValue shortToValue(Short data, PrimitiveType type) {
+    private static Converter shortConverter(PrimitiveType type) {
         switch (type) {
-            case Int8: return PrimitiveValue.newInt8(data.byteValue());
-            case Int16: return PrimitiveValue.newInt16(data);
-            case Int32: return PrimitiveValue.newInt32(data);
-            case Int64: return PrimitiveValue.newInt64(data);
+            case Int8: return data -> PrimitiveValue.newInt8(((Short) data).byteValue());
+            case Int16: return data -> PrimitiveValue.newInt16((Short) data);
+            case Int32: return data -> PrimitiveValue.newInt32((Short) data);
+            case Int64: return data -> PrimitiveValue.newInt64((Short) data);
 
-            case Uint8: return PrimitiveValue.newUint8(data);
-            case Uint16: return PrimitiveValue.newUint16(data);
-            case Uint32: return PrimitiveValue.newUint32(data);
-            case Uint64: return PrimitiveValue.newUint64(data);
+            case Uint8: return data -> PrimitiveValue.newUint8((Short) data);
+            case Uint16: return data -> PrimitiveValue.newUint16((Short) data);
+            case Uint32: return data -> PrimitiveValue.newUint32((Short) data);
+            case Uint64: return data -> PrimitiveValue.newUint64((Short) data);
 
-            case Text: return PrimitiveValue.newText(String.valueOf(data));
+            case Text: return data -> PrimitiveValue.newText(String.valueOf(data));
 
-            case Float: return PrimitiveValue.newFloat(data);
-            case Double: return PrimitiveValue.newDouble(data);
+            case Float: return data -> PrimitiveValue.newFloat((Short) data);
+            case Double: return data -> PrimitiveValue.newDouble((Short) data);
             default:
                 return null;
         }
     }
 
-    private static PrimitiveValue integerToValue(Integer data, PrimitiveType type) {
+    private static Converter integerConverter(PrimitiveType type) {
         switch (type) {
-            case Int8: return PrimitiveValue.newInt8(data.byteValue());
-            case Int16: return PrimitiveValue.newInt16(data.shortValue());
-            case Int32: return PrimitiveValue.newInt32(data);
-            case Int64: return PrimitiveValue.newInt64(data);
+            case Int8: return data -> PrimitiveValue.newInt8(((Integer) data).byteValue());
+            case Int16: return data -> PrimitiveValue.newInt16(((Integer) data).shortValue());
+            case Int32: return data -> PrimitiveValue.newInt32((Integer) data);
+            case Int64: return data -> PrimitiveValue.newInt64((Integer) data);
 
-            case Uint8: return PrimitiveValue.newUint8(data);
-            case Uint16: return PrimitiveValue.newUint16(data);
-            case Uint32: return PrimitiveValue.newUint32(data);
-            case Uint64: return PrimitiveValue.newUint64(data);
+            case Uint8: return data -> PrimitiveValue.newUint8((Integer) data);
+            case Uint16: return data -> PrimitiveValue.newUint16((Integer) data);
+            case Uint32: return data -> PrimitiveValue.newUint32((Integer) data);
+            case Uint64: return data -> PrimitiveValue.newUint64((Integer) data);
 
-            case Text: return PrimitiveValue.newText(String.valueOf(data));
+            case Text: return data -> PrimitiveValue.newText(String.valueOf(data));
 
-            case Float: return PrimitiveValue.newFloat(data);
-            case Double: return PrimitiveValue.newDouble(data);
+            case Float: return data -> PrimitiveValue.newFloat((Integer) data);
+            case Double: return data -> PrimitiveValue.newDouble((Integer) data);
             default:
                 return null;
         }
     }
 
-    private static PrimitiveValue longToValue(Long data, PrimitiveType type) {
+    private static Converter longConverter(PrimitiveType type) {
         switch (type) {
-            case Int8: return PrimitiveValue.newInt8(data.byteValue());
-            case Int16: return PrimitiveValue.newInt16(data.shortValue());
-            case Int32: return PrimitiveValue.newInt32(data.intValue());
-            case Int64: return PrimitiveValue.newInt64(data);
+            case Int8: return data -> PrimitiveValue.newInt8(((Long) data).byteValue());
+            case Int16: return data -> PrimitiveValue.newInt16(((Long) data).shortValue());
+            case Int32: return data -> PrimitiveValue.newInt32(((Long) data).intValue());
+            case Int64: return data -> PrimitiveValue.newInt64((Long) data);
 
-            case Uint8: return PrimitiveValue.newUint8(data.intValue());
-            case Uint16: return PrimitiveValue.newUint16(data.intValue());
-            case Uint32: return PrimitiveValue.newUint32(data);
-            case Uint64: return PrimitiveValue.newUint64(data);
+            case Uint8: return data -> PrimitiveValue.newUint8(((Long) data).intValue());
+            case Uint16: return data -> PrimitiveValue.newUint16(((Long) data).intValue());
+            case Uint32: return data -> PrimitiveValue.newUint32((Long) data);
+            case Uint64: return data -> PrimitiveValue.newUint64((Long) data);
 
-            case Text: return PrimitiveValue.newText(String.valueOf(data));
+            case Text: return data -> PrimitiveValue.newText(String.valueOf(data));
 
-            case Float: return PrimitiveValue.newFloat(data);
-            case Double: return PrimitiveValue.newDouble(data);
+            case Float: return data -> PrimitiveValue.newFloat((Long) data);
+            case Double: return data -> PrimitiveValue.newDouble((Long) data);
 
-            case Date: return PrimitiveValue.newDate(Instant.ofEpochMilli(data));
-            case Datetime: return PrimitiveValue.newDatetime(Instant.ofEpochMilli(data));
-            case Timestamp: return PrimitiveValue.newTimestamp(Instant.ofEpochMilli(data));
+            case Date: return data -> PrimitiveValue.newDate(Instant.ofEpochMilli((Long) data));
+            case Datetime: return data -> PrimitiveValue.newDatetime(Instant.ofEpochMilli((Long) data));
+            case Timestamp: return data -> PrimitiveValue.newTimestamp(Instant.ofEpochMilli((Long) data));
             default:
                 return null;
         }
     }
 
-    private static PrimitiveValue floatToValue(Float data, PrimitiveType type) {
+    private static Converter floatConverter(PrimitiveType type) {
         switch (type) {
-            case Text: return PrimitiveValue.newText(String.valueOf(data));
-            case Float: return PrimitiveValue.newFloat(data);
-            case Double: return PrimitiveValue.newDouble(data);
+            case Text: return data -> PrimitiveValue.newText(String.valueOf(data));
+            case Float: return data -> PrimitiveValue.newFloat((Float) data);
+            case Double: return data -> PrimitiveValue.newDouble((Float) data);
             default:
                 return null;
         }
     }
 
-    private static PrimitiveValue doubleToValue(Double data, PrimitiveType type) {
+    private static Converter doubleConverter(PrimitiveType type) {
         switch (type) {
-            case Text: return PrimitiveValue.newText(String.valueOf(data));
-            case Float: return PrimitiveValue.newFloat(data.floatValue());
-            case Double: return PrimitiveValue.newDouble(data);
+            case Text: return data -> PrimitiveValue.newText(String.valueOf(data));
+            case Float: return data -> PrimitiveValue.newFloat(((Double) data).floatValue());
+            case Double: return data -> PrimitiveValue.newDouble((Double) data);
             default:
                 return null;
         }
     }
 
-    private static PrimitiveValue stringToValue(String data, PrimitiveType type) {
+    private static Converter stringConverter(PrimitiveType type) {
         switch (type) {
-            case Text: return PrimitiveValue.newText(data);
-            case Bytes: return PrimitiveValue.newBytes(data.getBytes(StandardCharsets.UTF_8));
+            case Text: return data -> PrimitiveValue.newText((String) data);
+            case Bytes: return data -> PrimitiveValue.newBytes(((String) data).getBytes(StandardCharsets.UTF_8));
             default:
                 return null;
         }
     }
 
-    private static PrimitiveValue bytesToValue(byte[] data, PrimitiveType type) {
+    private static Converter bytesConverter(PrimitiveType type) {
         switch (type) {
-            case Bytes: return PrimitiveValue.newBytes(data);
+            case Bytes: return data -> PrimitiveValue.newBytes((byte[]) data);
             default:
                 return null;
         }
     }
 
-    private static PrimitiveValue instantToValue(Instant data, PrimitiveType type) {
+    private static Converter instantConverter(PrimitiveType type) {
         switch (type) {
-            case Date: return PrimitiveValue.newDate(data);
-            case Datetime: return PrimitiveValue.newDatetime(data);
-            case Timestamp: return PrimitiveValue.newTimestamp(data);
+            case Date: return data -> PrimitiveValue.newDate((Instant) data);
+            case Datetime: return data -> PrimitiveValue.newDatetime((Instant) data);
+            case Timestamp: return data -> PrimitiveValue.newTimestamp((Instant) data);
             default:
                 return null;
         }
     }
 
-    private static PrimitiveValue uuidToValue(UUID data, PrimitiveType type) {
+    private static Converter uuidConverter(PrimitiveType type) {
         switch (type) {
-            case Text: return PrimitiveValue.newText(data.toString());
-            case Bytes: {
+            case Text: return data -> PrimitiveValue.newText(data.toString());
+            case Bytes: return data -> {
+                UUID uuid = (UUID) data;
                 ByteBuffer bb = ByteBuffer.allocate(16);
-                bb.putLong(data.getMostSignificantBits());
-                bb.putLong(data.getLeastSignificantBits());
+                bb.putLong(uuid.getMostSignificantBits());
+                bb.putLong(uuid.getLeastSignificantBits());
                 return PrimitiveValue.newBytes(bb.array());
-            }
-            case Uuid: return PrimitiveValue.newUuid(data);
+            };
+            case Uuid: return data -> PrimitiveValue.newUuid((UUID) data);
             default:
                 return null;
         }
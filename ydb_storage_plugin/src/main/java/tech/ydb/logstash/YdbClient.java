@@ -1,6 +1,9 @@
 package tech.ydb.logstash;
 
+import java.util.concurrent.CompletableFuture;
+
 import tech.ydb.auth.AuthProvider;
+import tech.ydb.core.Status;
 import tech.ydb.table.description.TableDescription;
 import tech.ydb.table.values.ListValue;
 
@@ -19,6 +22,18 @@ public interface YdbClient extends AutoCloseable {
 
     void bulkUpsert(String tablePath, ListValue messages);
 
+    CompletableFuture<Status> bulkUpsertAsync(String tablePath, ListValue messages);
+
+    /**
+     * BulkUpsert of the rows in CSV format with the header line, see {@link CsvBatchBuilder}
+     */
+    CompletableFuture<Status> bulkUpsertCsvAsync(String tablePath, byte[] csv);
+
+    /**
+     * Count of retried attempts of all requests of the client
+     */
+    long getRetriesCount();
+
     @Override
     void close();
 }
@@ -1,13 +1,37 @@
 package tech.ydb.logstash;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import tech.ydb.auth.AuthProvider;
+import tech.ydb.core.Result;
+import tech.ydb.core.Status;
+import tech.ydb.core.StatusCode;
+import tech.ydb.core.grpc.GrpcRequestSettings;
 import tech.ydb.core.grpc.GrpcTransport;
+import tech.ydb.proto.formats.YdbFormats;
+import tech.ydb.proto.table.YdbTable;
+import tech.ydb.table.Session;
 import tech.ydb.table.SessionRetryContext;
 import tech.ydb.table.TableClient;
 import tech.ydb.table.description.TableDescription;
+import tech.ydb.table.rpc.TableRpc;
+import tech.ydb.table.rpc.grpc.GrpcTableRpc;
 import tech.ydb.table.settings.BulkUpsertSettings;
+import tech.ydb.table.settings.DescribeTableSettings;
 import tech.ydb.table.values.ListValue;
 
 /**
@@ -15,29 +39,181 @@ import tech.ydb.table.values.ListValue;
  * @author Aleksandr Gorshenin
  */
 public class YdbClientImpl implements YdbClient {
+    /**
+     * Settings of the session pool, of the retries and of the requests, default values are the same as in the SDK
+     */
+    static final class Settings {
+        int sessionPoolMinSize = 10;
+        int sessionPoolMaxSize = 50;
+        Duration sessionKeepAliveTime = Duration.ofMinutes(5);
+        Duration sessionMaxIdleTime = Duration.ofMinutes(1);
+        boolean prewarmSessions = true;
+
+        int maxRetries = 10;
+        Duration backoffSlot = Duration.ofMillis(500);
+        int backoffCeiling = 6;
+        boolean idempotent = false;
+
+        // deadline of one attempt of BulkUpsert request, SDK doesn't limit it by default
+        Duration requestTimeout = Duration.ofMinutes(1);
+    }
+
+    private static final Duration SESSION_CREATE_TIMEOUT = Duration.ofSeconds(5);
+    // the same backoff slot as the retry context uses for statuses which are not about the overload of YDB
+    private static final long FAST_BACKOFF_SLOT_MILLIS = 5;
+
+    private static final YdbFormats.CsvSettings CSV_SETTINGS = YdbFormats.CsvSettings.newBuilder()
+            .setHeader(true)
+            .setNullValue(ByteString.copyFromUtf8(CsvBatchBuilder.NULL_VALUE))
+            .build();
+
+    private final Logger logger = LoggerFactory.getLogger(YdbClientImpl.class);
+
     private final GrpcTransport transport;
     private final TableClient tableClient;
+    private final TableRpc tableRpc;
     private final SessionRetryContext retryCtx;
+    private final Settings settings;
     private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final LongAdder retries = new LongAdder();
 
     public YdbClientImpl(String connectionString, AuthProvider auth) {
+        this(connectionString, auth, new Settings());
+    }
+
+    public YdbClientImpl(String connectionString, AuthProvider auth, Settings settings) {
+        this.settings = settings;
         this.transport = GrpcTransport.forConnectionString(connectionString)
                 .withAuthProvider(auth)
                 .build();
-        this.tableClient = TableClient.newClient(transport).build();
-        this.retryCtx = SessionRetryContext.create(tableClient).build();
+        this.tableClient = TableClient.newClient(transport)
+                .sessionPoolSize(settings.sessionPoolMinSize, settings.sessionPoolMaxSize)
+                .sessionKeepAliveTime(settings.sessionKeepAliveTime)
+                .sessionMaxIdleTime(settings.sessionMaxIdleTime)
+                .build();
+        this.tableRpc = GrpcTableRpc.useTransport(transport);
+        this.retryCtx = SessionRetryContext.create(tableClient)
+                .maxRetries(settings.maxRetries)
+                .backoffSlot(settings.backoffSlot)
+                .backoffCeiling(settings.backoffCeiling)
+                .idempotent(settings.idempotent)
+                .build();
+
+        if (settings.prewarmSessions) {
+            prewarmSessions(settings.sessionPoolMinSize);
+        }
+    }
+
+    /**
+     * Creates min count of sessions at once, so the first batches don't wait for the session creation
+     */
+    private void prewarmSessions(int count) {
+        List<CompletableFuture<Result<Session>>> sessions = new ArrayList<>(count);
+        for (int idx = 0; idx < count; idx++) {
+            sessions.add(tableClient.createSession(SESSION_CREATE_TIMEOUT));
+        }
+
+        int created = 0;
+        for (CompletableFuture<Result<Session>> future : sessions) {
+            Result<Session> session = future.join();
+            if (session.isSuccess()) {
+                // session is returned to the pool
+                session.getValue().close();
+                created++;
+            } else {
+                logger.warn("Cannot create session: {}", session.getStatus());
+            }
+        }
+        logger.debug("{} of {} sessions are pre-created", created, count);
     }
 
     @Override
     public TableDescription desribeTable(String tablePath) {
-        return retryCtx.supplyResult(session -> session.describeTable(tablePath)).join().getValue();
+        DescribeTableSettings settings = new DescribeTableSettings();
+        settings.setIncludeShardKeyBounds(true);
+        return retryCtx.supplyResult(session -> session.describeTable(tablePath, settings)).join().getValue();
     }
 
     @Override
     public void bulkUpsert(String tablePath, ListValue messages) {
-        retryCtx.supplyStatus(
-                session -> session.executeBulkUpsert(tablePath, messages, new BulkUpsertSettings())
-        ).join().expectSuccess("bulk upsert problem");
+        bulkUpsertAsync(tablePath, messages).join().expectSuccess("bulk upsert problem");
+    }
+
+    @Override
+    public CompletableFuture<Status> bulkUpsertAsync(String tablePath, ListValue messages) {
+        BulkUpsertSettings bulkSettings = new BulkUpsertSettings().setTimeout(settings.requestTimeout);
+        return retryCtx.supplyStatus(countRetries(
+                session -> session.executeBulkUpsert(tablePath, messages, bulkSettings)
+        ));
+    }
+
+    @Override
+    public CompletableFuture<Status> bulkUpsertCsvAsync(String tablePath, byte[] csv) {
+        YdbTable.BulkUpsertRequest request = YdbTable.BulkUpsertRequest.newBuilder()
+                .setTable(tablePath)
+                .setData(UnsafeByteOperations.unsafeWrap(csv))
+                .setCsvSettings(CSV_SETTINGS)
+                .build();
+
+        // the table service API of SDK accepts only the list of structs, so the request is sent directly
+        CompletableFuture<Status> result = new CompletableFuture<>();
+        bulkUpsertCsv(request, 0, result);
+        return result;
+    }
+
+    /**
+     * BulkUpsert doesn't use the session, so CSV requests are retried without the retry context which takes a session
+     * from the pool for every attempt. The retry policy is the same as the policy of the retry context.
+     */
+    private void bulkUpsertCsv(YdbTable.BulkUpsertRequest request, int attempt, CompletableFuture<Status> result) {
+        GrpcRequestSettings grpcSettings = GrpcRequestSettings.newBuilder()
+                .withDeadline(settings.requestTimeout)
+                .build();
+        tableRpc.bulkUpsert(request, grpcSettings).whenComplete((status, th) -> {
+            if (th != null) {
+                result.completeExceptionally(th);
+                return;
+            }
+            if (status.isSuccess() || attempt >= settings.maxRetries
+                    || !status.getCode().isRetryable(settings.idempotent)) {
+                result.complete(status);
+                return;
+            }
+
+            retries.increment();
+            try {
+                transport.getScheduler().schedule(() -> bulkUpsertCsv(request, attempt + 1, result),
+                        backoffMillis(status.getCode(), attempt), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // the client is closed
+                result.complete(status);
+            }
+        });
+    }
+
+    private long backoffMillis(StatusCode code, int attempt) {
+        boolean overloaded = code == StatusCode.OVERLOADED || code == StatusCode.CLIENT_RESOURCE_EXHAUSTED;
+        long slot = overloaded ? settings.backoffSlot.toMillis() : FAST_BACKOFF_SLOT_MILLIS;
+        long delay = Math.max(1, slot * (1L << Math.min(attempt, settings.backoffCeiling)));
+        return delay + ThreadLocalRandom.current().nextLong(delay);
+    }
+
+    /**
+     * The retry context calls the function for every attempt, so all calls after the first one are retries
+     */
+    private <T> Function<Session, CompletableFuture<T>> countRetries(Function<Session, CompletableFuture<T>> fn) {
+        AtomicBoolean firstAttempt = new AtomicBoolean(true);
+        return session -> {
+            if (!firstAttempt.compareAndSet(true, false)) {
+                retries.increment();
+            }
+            return fn.apply(session);
+        };
+    }
+
+    @Override
+    public long getRetriesCount() {
+        return retries.sum();
     }
 
     @Override
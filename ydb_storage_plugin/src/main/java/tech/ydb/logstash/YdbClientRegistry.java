@@ -0,0 +1,129 @@
+package tech.ydb.logstash;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import tech.ydb.core.Status;
+import tech.ydb.table.description.TableDescription;
+import tech.ydb.table.values.ListValue;
+
+/**
+ * Registry of clients shared by all plugins with the same connection settings in one JVM. Every plugin gets own
+ * lease of the client, the client is closed when the last lease is closed.
+ */
+final class YdbClientRegistry {
+    private static final Map<String, Entry> ENTRIES = new HashMap<>();
+
+    private YdbClientRegistry() { }
+
+    static YdbClient acquire(String key, Supplier<YdbClient> factory) {
+        Entry entry;
+        boolean created = false;
+        synchronized (ENTRIES) {
+            entry = ENTRIES.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                ENTRIES.put(key, entry);
+                created = true;
+            }
+            entry.refs++;
+        }
+
+        // the client connects outside of the lock, so only plugins with the same key wait for it
+        if (created) {
+            try {
+                entry.client.complete(factory.get());
+            } catch (RuntimeException ex) {
+                synchronized (ENTRIES) {
+                    // the next plugin creates the client again
+                    ENTRIES.remove(key, entry);
+                }
+                entry.client.completeExceptionally(ex);
+            }
+        }
+
+        YdbClient client;
+        try {
+            client = entry.client.join();
+        } catch (CompletionException ex) {
+            release(entry);
+            throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : ex;
+        }
+        return new Lease(entry, client);
+    }
+
+    private static void release(Entry entry) {
+        synchronized (ENTRIES) {
+            entry.refs--;
+            if (entry.refs > 0) {
+                return;
+            }
+            ENTRIES.remove(entry.key, entry);
+        }
+        if (!entry.client.isCompletedExceptionally()) {
+            entry.client.join().close();
+        }
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final CompletableFuture<YdbClient> client = new CompletableFuture<>();
+        private int refs = 0;
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Lease implements YdbClient {
+        private final Entry entry;
+        private final YdbClient client;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        Lease(Entry entry, YdbClient client) {
+            this.entry = entry;
+            this.client = client;
+        }
+
+        @Override
+        public String getDatabase() {
+            return client.getDatabase();
+        }
+
+        @Override
+        public TableDescription desribeTable(String tablePath) {
+            return client.desribeTable(tablePath);
+        }
+
+        @Override
+        public void bulkUpsert(String tablePath, ListValue messages) {
+            client.bulkUpsert(tablePath, messages);
+        }
+
+        @Override
+        public CompletableFuture<Status> bulkUpsertAsync(String tablePath, ListValue messages) {
+            return client.bulkUpsertAsync(tablePath, messages);
+        }
+
+        @Override
+        public CompletableFuture<Status> bulkUpsertCsvAsync(String tablePath, byte[] csv) {
+            return client.bulkUpsertCsvAsync(tablePath, csv);
+        }
+
+        @Override
+        public long getRetriesCount() {
+            return client.getRetriesCount();
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release(entry);
+            }
+        }
+    }
+}
@@ -2,21 +2,39 @@ package tech.ydb.logstash;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import co.elastic.logstash.api.*;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import tech.ydb.auth.AuthProvider;
 import tech.ydb.auth.NopAuthProvider;
 import tech.ydb.auth.TokenAuthProvider;
 import tech.ydb.auth.iam.CloudAuthHelper;
+import tech.ydb.core.Issue;
+import tech.ydb.core.Status;
+import tech.ydb.core.StatusCode;
+import tech.ydb.proto.ValueProtos;
 import tech.ydb.table.description.TableColumn;
 import tech.ydb.table.description.TableDescription;
 import tech.ydb.table.values.*;
+import tech.ydb.table.values.proto.ProtoType;
+import tech.ydb.table.values.proto.ProtoValue;
 
 // class name must match plugin name
 @LogstashPlugin(name = "ydb_storage")
@@ -25,6 +43,209 @@ public class YdbStorage implements Output {
         Value<?> readField(Event event);
     }
 
+    /**
+     * Rows of one BulkUpsert request
+     */
+    private interface Chunk {
+        int rowsCount();
+
+        long bytesCount();
+
+        CompletableFuture<Status> upload(YdbClient client, String tablePath);
+
+        byte format();
+
+        byte[] serialize();
+    }
+
+    static final byte VALUES_FORMAT = 0;
+    static final byte CSV_FORMAT = 1;
+
+    private static final class ValuesChunk implements Chunk {
+        private final ListValue rows;
+        private final long bytesCount;
+
+        ValuesChunk(ListValue rows, long bytesCount) {
+            this.rows = rows;
+            this.bytesCount = bytesCount;
+        }
+
+        @Override
+        public int rowsCount() {
+            return rows.size();
+        }
+
+        @Override
+        public long bytesCount() {
+            return bytesCount;
+        }
+
+        @Override
+        public CompletableFuture<Status> upload(YdbClient client, String tablePath) {
+            return client.bulkUpsertAsync(tablePath, rows);
+        }
+
+        @Override
+        public byte format() {
+            return VALUES_FORMAT;
+        }
+
+        @Override
+        public byte[] serialize() {
+            return ValueProtos.TypedValue.newBuilder()
+                    .setType(rows.getType().toPb())
+                    .setValue(rows.toPb())
+                    .build()
+                    .toByteArray();
+        }
+    }
+
+    private static final class CsvChunk implements Chunk {
+        private final int rowsCount;
+        private final byte[] data;
+
+        CsvChunk(int rowsCount, byte[] data) {
+            this.rowsCount = rowsCount;
+            this.data = data;
+        }
+
+        @Override
+        public int rowsCount() {
+            return rowsCount;
+        }
+
+        @Override
+        public long bytesCount() {
+            return data.length;
+        }
+
+        @Override
+        public CompletableFuture<Status> upload(YdbClient client, String tablePath) {
+            return client.bulkUpsertCsvAsync(tablePath, data);
+        }
+
+        @Override
+        public byte format() {
+            return CSV_FORMAT;
+        }
+
+        @Override
+        public byte[] serialize() {
+            return data;
+        }
+    }
+
+    /**
+     * Collects rows of one partition and cuts them into chunks limited by row count and estimated size
+     */
+    private abstract static class ChunkBuilder {
+        private final int maxRows;
+        private final long maxBytes;
+        private final List<Chunk> chunks;
+
+        private int rows = 0;
+        private long bytes = 0;
+
+        ChunkBuilder(int maxRows, long maxBytes, List<Chunk> chunks) {
+            this.maxRows = maxRows;
+            this.maxBytes = maxBytes;
+            this.chunks = chunks;
+        }
+
+        void add(Value<?>[] fields, long rowBytes) {
+            if (rows > 0 && (rows >= maxRows || bytes + rowBytes > maxBytes)) {
+                flushRows();
+            }
+            addRow(fields);
+            rows++;
+            bytes += rowBytes;
+        }
+
+        void flush() {
+            flushRows();
+        }
+
+        private void flushRows() {
+            if (rows > 0) {
+                chunks.add(build(bytes));
+                rows = 0;
+                bytes = 0;
+            }
+        }
+
+        protected abstract void addRow(Value<?>[] fields);
+
+        protected abstract Chunk build(long bytes);
+    }
+
+    /**
+     * Chunk of rows as the list of structs
+     */
+    private static final class ValuesChunkBuilder extends ChunkBuilder {
+        private final StructType rowType;
+        private final ListType listType;
+        private List<Value<?>> rows = new ArrayList<>();
+
+        ValuesChunkBuilder(StructType rowType, ListType listType, int maxRows, long maxBytes, List<Chunk> chunks) {
+            super(maxRows, maxBytes, chunks);
+            this.rowType = rowType;
+            this.listType = listType;
+        }
+
+        @Override
+        protected void addRow(Value<?>[] fields) {
+            rows.add(rowType.newValueUnsafe(fields.clone()));
+        }
+
+        @Override
+        protected Chunk build(long bytes) {
+            ListValue list = listType.newValue(rows);
+            rows = new ArrayList<>();
+            return new ValuesChunk(list, bytes);
+        }
+    }
+
+    /**
+     * Chunk of rows as CSV payload, values are written right away without any intermediate row objects. Rare rows which
+     * can't be written to CSV are collected to separate chunks of the list of structs.
+     */
+    private static final class CsvChunkBuilder extends ChunkBuilder {
+        private final CsvBatchBuilder csv;
+        private final ValuesChunkBuilder fallback;
+
+        CsvChunkBuilder(StructType rowType, ListType listType, int maxRows, long maxBytes, List<Chunk> chunks) {
+            super(maxRows, maxBytes, chunks);
+            this.csv = new CsvBatchBuilder(rowType);
+            this.fallback = new ValuesChunkBuilder(rowType, listType, maxRows, maxBytes, chunks);
+        }
+
+        @Override
+        void add(Value<?>[] fields, long rowBytes) {
+            if (CsvBatchBuilder.isWritable(fields)) {
+                super.add(fields, rowBytes);
+            } else {
+                fallback.add(fields, rowBytes);
+            }
+        }
+
+        @Override
+        void flush() {
+            super.flush();
+            fallback.flush();
+        }
+
+        @Override
+        protected void addRow(Value<?>[] fields) {
+            csv.addRow(fields);
+        }
+
+        @Override
+        protected Chunk build(long bytes) {
+            int count = csv.rowsCount();
+            return new CsvChunk(count, csv.build());
+        }
+    }
+
     static final PluginConfigSpec<String> CONNECTION = PluginConfigSpec.requiredStringSetting("connection_string");
     static final PluginConfigSpec<String> SA_KEY_FILE = PluginConfigSpec.stringSetting("sa_key_file");
     static final PluginConfigSpec<String> TOKEN_AUTH = PluginConfigSpec.stringSetting("token_auth");
@@ -36,24 +257,195 @@ public class YdbStorage implements Output {
     static final PluginConfigSpec<String> TIMESTAMP_COLUMN_NAME = PluginConfigSpec.stringSetting("timestamp_column");
     static final PluginConfigSpec<Map<String, Object>> COLUMNS = PluginConfigSpec.hashSetting("columns");
 
+    static final PluginConfigSpec<Long> MAX_INFLIGHT_BATCHES = PluginConfigSpec.numSetting("max_inflight_batches", 1);
+    static final PluginConfigSpec<Long> MAX_ROWS_PER_REQUEST = PluginConfigSpec.numSetting("max_rows_per_request", 10000);
+    static final PluginConfigSpec<Long> MAX_BYTES_PER_REQUEST = PluginConfigSpec.numSetting("max_bytes_per_request",
+            8 * 1024 * 1024);
+    static final PluginConfigSpec<Boolean> PARTITION_ROUTING = PluginConfigSpec.booleanSetting("partition_routing",
+            false);
+    static final PluginConfigSpec<Long> PARTITIONS_REFRESH_INTERVAL = PluginConfigSpec.numSetting(
+            "partitions_refresh_interval", 60);
+    static final PluginConfigSpec<String> INGEST_FORMAT = PluginConfigSpec.stringSetting("ingest_format", "values");
+
+    static final PluginConfigSpec<Boolean> ADAPTIVE_BATCHING = PluginConfigSpec.booleanSetting("adaptive_batching",
+            false);
+    static final PluginConfigSpec<Long> TARGET_LATENCY = PluginConfigSpec.numSetting("target_latency_ms", 500);
+    static final PluginConfigSpec<Long> MIN_ROWS_PER_REQUEST = PluginConfigSpec.numSetting("min_rows_per_request", 100);
+
+    static final PluginConfigSpec<String> SPILL_PATH = PluginConfigSpec.stringSetting("spill_path");
+    static final PluginConfigSpec<Long> SPILL_SEGMENT_SIZE = PluginConfigSpec.numSetting("spill_segment_size",
+            64 * 1024 * 1024);
+    static final PluginConfigSpec<Long> SPILL_MAX_BYTES = PluginConfigSpec.numSetting("spill_max_bytes",
+            1024 * 1024 * 1024);
+    static final PluginConfigSpec<Long> SPILL_DRAIN_RATE = PluginConfigSpec.numSetting("spill_drain_rate", 10);
+
+    static final PluginConfigSpec<Long> SESSION_POOL_MIN_SIZE = PluginConfigSpec.numSetting(
+            "session_pool_min_size", 10);
+    static final PluginConfigSpec<Long> SESSION_POOL_MAX_SIZE = PluginConfigSpec.numSetting(
+            "session_pool_max_size", 50);
+    static final PluginConfigSpec<Long> SESSION_KEEP_ALIVE_TIME = PluginConfigSpec.numSetting(
+            "session_keep_alive_time", 300);
+    static final PluginConfigSpec<Long> SESSION_MAX_IDLE_TIME = PluginConfigSpec.numSetting(
+            "session_max_idle_time", 60);
+    static final PluginConfigSpec<Boolean> SESSION_POOL_PREWARM = PluginConfigSpec.booleanSetting(
+            "session_pool_prewarm", true);
+    static final PluginConfigSpec<Long> RETRY_MAX_RETRIES = PluginConfigSpec.numSetting("retry_max_retries", 10);
+    static final PluginConfigSpec<Long> RETRY_BACKOFF_SLOT = PluginConfigSpec.numSetting("retry_backoff_slot_ms", 500);
+    static final PluginConfigSpec<Long> RETRY_BACKOFF_CEILING = PluginConfigSpec.numSetting(
+            "retry_backoff_ceiling", 6);
+    static final PluginConfigSpec<Boolean> RETRY_IDEMPOTENT = PluginConfigSpec.booleanSetting(
+            "retry_idempotent", false);
+    static final PluginConfigSpec<Long> REQUEST_TIMEOUT = PluginConfigSpec.numSetting("request_timeout", 60);
+
+    private final Logger logger = LoggerFactory.getLogger(YdbStorage.class);
+
     private final String id;
     private final String tablePath;
-//    private final Logger logger;
 
     private final StructType tableRowType;
+    private final ListType tableListType;
     private final FieldReader[] fieldReaders;
 
+    private volatile TablePartitions partitions = TablePartitions.single();
+    private final ScheduledExecutorService partitionsRefresher;
+
+    private final boolean csvFormat;
+    private final int maxRowsPerRequest;
+    private final long maxBytesPerRequest;
+    private final int maxInflightBatches;
+    private final Semaphore inflightBatches;
+    private final AdaptiveBatching adaptive;
+    private final AtomicReference<Status> inflightError = new AtomicReference<>();
+
+    // statuses of temporary unavailability of YDB, such batches are spilled and replayed later
+    private static final Set<StatusCode> SPILLABLE_STATUSES = EnumSet.of(
+            StatusCode.OVERLOADED,
+            StatusCode.UNAVAILABLE,
+            StatusCode.TIMEOUT,
+            StatusCode.UNDETERMINED,
+            StatusCode.TRANSPORT_UNAVAILABLE,
+            StatusCode.CLIENT_RESOURCE_EXHAUSTED,
+            StatusCode.CLIENT_DEADLINE_EXCEEDED,
+            StatusCode.CLIENT_DEADLINE_EXPIRED,
+            StatusCode.CLIENT_DISCOVERY_FAILED,
+            StatusCode.CLIENT_LIMITS_REACHED
+    );
+
+    private final SpillQueue spill;
+    private final ScheduledExecutorService spillDrainer;
+
+    private final PluginMetrics metrics;
+    private final CounterMetric rowsUpserted;
+    private final CounterMetric rowsDropped;
+    private final CounterMetric rowsSpilled;
+    private final CounterMetric spillRejected;
+    private final CounterMetric bytesSent;
+    private final CounterMetric requests;
+    private final CounterMetric failedRequests;
+    private final PluginMetrics.Histogram upsertLatency;
+
     private final YdbClient client;
     private final CountDownLatch stopped = new CountDownLatch(1);
 
     // all plugins must provide a constructor that accepts id, Configuration, and Context
     public YdbStorage(String id, Configuration cfg, Context ctx) {
-        this(id, cfg, ctx, YdbClientImpl::new, UUID::randomUUID);
+        this(id, cfg, ctx, sharedClientFactory(cfg), UUID::randomUUID);
+    }
+
+    /**
+     * Plugins with the same connection settings use one shared client with one transport and one session pool
+     */
+    private static YdbClient.Factory sharedClientFactory(Configuration cfg) {
+        YdbClientImpl.Settings settings = new YdbClientImpl.Settings();
+        settings.sessionPoolMinSize = cfg.get(SESSION_POOL_MIN_SIZE).intValue();
+        settings.sessionPoolMaxSize = cfg.get(SESSION_POOL_MAX_SIZE).intValue();
+        settings.sessionKeepAliveTime = Duration.ofSeconds(cfg.get(SESSION_KEEP_ALIVE_TIME));
+        settings.sessionMaxIdleTime = Duration.ofSeconds(cfg.get(SESSION_MAX_IDLE_TIME));
+        settings.prewarmSessions = cfg.get(SESSION_POOL_PREWARM);
+        settings.maxRetries = cfg.get(RETRY_MAX_RETRIES).intValue();
+        settings.backoffSlot = Duration.ofMillis(cfg.get(RETRY_BACKOFF_SLOT));
+        settings.backoffCeiling = cfg.get(RETRY_BACKOFF_CEILING).intValue();
+        settings.idempotent = cfg.get(RETRY_IDEMPOTENT);
+        settings.requestTimeout = Duration.ofSeconds(cfg.get(REQUEST_TIMEOUT));
+
+        if (settings.sessionPoolMinSize < 0 || settings.sessionPoolMaxSize < 1
+                || settings.sessionPoolMinSize > settings.sessionPoolMaxSize) {
+            throw new IllegalStateException("Invalid session pool size [" + settings.sessionPoolMinSize + ", "
+                    + settings.sessionPoolMaxSize + "]");
+        }
+        if (settings.requestTimeout.isNegative() || settings.requestTimeout.isZero()) {
+            throw new IllegalStateException("Invalid " + REQUEST_TIMEOUT.name() + " value " + cfg.get(REQUEST_TIMEOUT));
+        }
+
+        // plugins with different pool settings cannot share the client
+        String key = String.join("\n",
+                cfg.get(CONNECTION),
+                String.valueOf(cfg.get(SA_KEY_FILE)),
+                String.valueOf(cfg.get(TOKEN_AUTH)),
+                String.valueOf(cfg.get(TOKEN_FILE)),
+                String.valueOf(cfg.get(USE_METADATA)),
+                String.valueOf(settings.sessionPoolMinSize),
+                String.valueOf(settings.sessionPoolMaxSize),
+                String.valueOf(settings.sessionKeepAliveTime),
+                String.valueOf(settings.sessionMaxIdleTime),
+                String.valueOf(settings.maxRetries),
+                String.valueOf(settings.backoffSlot),
+                String.valueOf(settings.backoffCeiling),
+                String.valueOf(settings.idempotent),
+                String.valueOf(settings.requestTimeout)
+        );
+        return (connectionString, auth) -> YdbClientRegistry.acquire(key,
+                () -> new YdbClientImpl(connectionString, auth, settings));
     }
 
     YdbStorage(String id, Configuration cfg, Context ctx, YdbClient.Factory factory, Supplier<UUID> uuidSupplier) {
         this.id = id;
-//        this.logger = context.getLogger();
+
+        this.metrics = PluginMetrics.of(ctx, this);
+        this.rowsUpserted = metrics.counter("rows_upserted");
+        this.rowsDropped = metrics.counter("rows_dropped");
+        this.rowsSpilled = metrics.counter("rows_spilled");
+        this.spillRejected = metrics.counter("spill_rejected_batches");
+        this.bytesSent = metrics.counter("bytes_sent");
+        this.requests = metrics.counter("bulk_upserts");
+        this.failedRequests = metrics.counter("bulk_upsert_failures");
+        this.upsertLatency = metrics.histogram("bulk_upsert_latency");
+
+        Long maxInflight = cfg.get(MAX_INFLIGHT_BATCHES);
+        if (maxInflight == null || maxInflight < 1) {
+            throw new IllegalStateException("Invalid " + MAX_INFLIGHT_BATCHES.name() + " value " + maxInflight);
+        }
+        this.maxInflightBatches = maxInflight.intValue();
+        this.inflightBatches = new Semaphore(maxInflightBatches);
+
+        Long maxRows = cfg.get(MAX_ROWS_PER_REQUEST);
+        if (maxRows == null || maxRows < 1) {
+            throw new IllegalStateException("Invalid " + MAX_ROWS_PER_REQUEST.name() + " value " + maxRows);
+        }
+        this.maxRowsPerRequest = maxRows.intValue();
+
+        Long maxBytes = cfg.get(MAX_BYTES_PER_REQUEST);
+        if (maxBytes == null || maxBytes < 1) {
+            throw new IllegalStateException("Invalid " + MAX_BYTES_PER_REQUEST.name() + " value " + maxBytes);
+        }
+        this.maxBytesPerRequest = maxBytes;
+
+        Boolean adaptiveBatching = cfg.get(ADAPTIVE_BATCHING);
+        if (adaptiveBatching != null && adaptiveBatching) {
+            Long minRows = cfg.get(MIN_ROWS_PER_REQUEST);
+            if (minRows == null || minRows < 1 || minRows > maxRowsPerRequest) {
+                throw new IllegalStateException("Invalid " + MIN_ROWS_PER_REQUEST.name() + " value " + minRows);
+            }
+            Long targetLatency = cfg.get(TARGET_LATENCY);
+            if (targetLatency == null || targetLatency < 1) {
+                throw new IllegalStateException("Invalid " + TARGET_LATENCY.name() + " value " + targetLatency);
+            }
+            this.adaptive = new AdaptiveBatching(minRows.intValue(), maxRowsPerRequest, maxInflightBatches,
+                    TimeUnit.MILLISECONDS.toNanos(targetLatency));
+        } else {
+            this.adaptive = null;
+        }
+        this.csvFormat = parseIngestFormat(cfg.get(INGEST_FORMAT));
 
         String connectionString = cfg.get(CONNECTION);
         AuthProvider auth = createAuthProvider(cfg);
@@ -73,6 +465,9 @@ public class YdbStorage implements Output {
                             Collectors.toMap(TableColumn::getName, TableColumn::getType)
                     )
             );
+            this.tableListType = ListType.of(tableRowType);
+
+            Map<String, FieldAccessor> mapping = parseColumnsMapping(cfg.get(COLUMNS));
 
             Set<String> columnNames = new HashSet<>();
             this.fieldReaders = new FieldReader[tableRowType.getMembersCount()];
@@ -85,7 +480,12 @@ public class YdbStorage implements Output {
                 } else if (columnTimestamp != null && columnTimestamp.equals(name)) {
                     fieldReaders[idx] = timestampFieldReader(type);
                 } else {
-                    fieldReaders[idx] = eventFieldReader(name, type);
+                    FieldAccessor field = mapping.get(name);
+                    fieldReaders[idx] = eventFieldReader(field != null ? field : FieldAccessor.of(name), type);
+                }
+                if (csvFormat && !CsvBatchBuilder.isSupported(type)) {
+                    throw new IllegalStateException("Unsupported type " + type + " of column " + name + " for "
+                            + INGEST_FORMAT.name() + " csv");
                 }
             }
 
@@ -95,8 +495,63 @@ public class YdbStorage implements Output {
             if (columnTimestamp != null && !columnNames.contains(columnTimestamp)) {
                 throw new IllegalStateException("Table " + tableName + " doesn't have column " + columnTimestamp);
             }
+            for (String column : mapping.keySet()) {
+                if (!columnNames.contains(column)) {
+                    throw new IllegalStateException("Table " + tableName + " doesn't have column " + column);
+                }
+                if (column.equals(columnId) || column.equals(columnTimestamp)) {
+                    throw new IllegalStateException("Column " + column + " cannot be mapped to the event field");
+                }
+            }
+
+            Boolean routing = cfg.get(PARTITION_ROUTING);
+            Long refreshInterval = cfg.get(PARTITIONS_REFRESH_INTERVAL);
+            if (routing != null && routing) {
+                this.partitions = TablePartitions.of(description, tableRowType);
+            }
 
             this.client = ydbClient;
+
+            String spillPath = cfg.get(SPILL_PATH);
+            if (spillPath != null && !spillPath.isEmpty()) {
+                Long segmentSize = cfg.get(SPILL_SEGMENT_SIZE);
+                if (segmentSize == null || segmentSize < 1 || segmentSize > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("Invalid " + SPILL_SEGMENT_SIZE.name() + " value " + segmentSize);
+                }
+                Long spillMaxBytes = cfg.get(SPILL_MAX_BYTES);
+                if (spillMaxBytes == null || spillMaxBytes < 1) {
+                    throw new IllegalStateException("Invalid " + SPILL_MAX_BYTES.name() + " value " + spillMaxBytes);
+                }
+                Long drainRate = cfg.get(SPILL_DRAIN_RATE);
+                if (drainRate == null || drainRate < 1) {
+                    throw new IllegalStateException("Invalid " + SPILL_DRAIN_RATE.name() + " value " + drainRate);
+                }
+
+                // every plugin has own queue, records of the previous run are replayed after the start
+                this.spill = new SpillQueue(Paths.get(spillPath, id), segmentSize.intValue(), spillMaxBytes);
+                this.spillDrainer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "ydb-storage-" + id + "-spill");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                long drainDelay = TimeUnit.SECONDS.toMicros(1) / drainRate;
+                spillDrainer.scheduleWithFixedDelay(this::drainSpill, drainDelay, drainDelay, TimeUnit.MICROSECONDS);
+            } else {
+                this.spill = null;
+                this.spillDrainer = null;
+            }
+
+            if (routing != null && routing && refreshInterval != null && refreshInterval > 0) {
+                this.partitionsRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "ydb-storage-" + id + "-partitions");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                partitionsRefresher.scheduleWithFixedDelay(this::refreshPartitions,
+                        refreshInterval, refreshInterval, TimeUnit.SECONDS);
+            } else {
+                this.partitionsRefresher = null;
+            }
         } catch (RuntimeException ex) {
             ydbClient.close();
             this.stopped.countDown();
@@ -104,34 +559,375 @@ public class YdbStorage implements Output {
         }
     }
 
+    private void refreshPartitions() {
+        try {
+            TablePartitions updated = TablePartitions.of(client.desribeTable(tablePath), tableRowType);
+            if (updated.size() != partitions.size()) {
+                logger.info("table {} now has {} partitions", tablePath, updated.size());
+            }
+            partitions = updated;
+        } catch (RuntimeException ex) {
+            logger.warn("cannot refresh partitions of table {}", tablePath, ex);
+        }
+    }
+
     @Override
     public void output(final Collection<Event> events) {
         if (events.isEmpty() || client == null) {
             return;
         }
 
-        List<Value<?>> eventToWrite = events.stream().map(ev -> {
-            Value<?>[] fields = new Value[fieldReaders.length];
-            for (int idx = 0; idx < fieldReaders.length; idx++) {
-                fields[idx] = fieldReaders[idx].readField(ev);
-                if (fields[idx] == null) {
-                    return null;
+        // rows are grouped by partitions, so every request touches as few shards as possible
+        TablePartitions currentPartitions = partitions;
+        int maxRows = adaptive != null ? adaptive.rowsLimit() : maxRowsPerRequest;
+        List<Chunk> chunks = new ArrayList<>();
+        ChunkBuilder[] builders = new ChunkBuilder[currentPartitions.size()];
+
+        // row values are copied by the chunk builders, so one array is reused for all events
+        Value<?>[] fields = new Value[fieldReaders.length];
+        for (Event ev : events) {
+            if (!readRow(ev, fields)) {
+                rowsDropped.increment();
+                continue;
+            }
+
+            long rowBytes = 0;
+            for (Value<?> field : fields) {
+                rowBytes += estimateSize(field);
+            }
+
+            int partition = currentPartitions.partitionOf(fields);
+            if (builders[partition] == null) {
+                builders[partition] = newChunkBuilder(maxRows, chunks);
+            }
+            builders[partition].add(fields, rowBytes);
+        }
+
+        for (ChunkBuilder builder : builders) {
+            if (builder != null) {
+                builder.flush();
+            }
+        }
+
+        if (spill != null) {
+            uploadOrSpill(chunks);
+            return;
+        }
+
+        if (maxInflightBatches > 1) {
+            for (Chunk chunk : chunks) {
+                bulkUpsertAsync(chunk);
+            }
+            return;
+        }
+
+        // every chunk is retried independently, so one failed chunk doesn't resend the whole batch
+        List<CompletableFuture<Status>> futures = new ArrayList<>(chunks.size());
+        for (Chunk chunk : chunks) {
+            futures.add(upload(chunk));
+        }
+        for (CompletableFuture<Status> future : futures) {
+            future.join().expectSuccess("bulk upsert problem");
+        }
+    }
+
+    private ChunkBuilder newChunkBuilder(int maxRows, List<Chunk> chunks) {
+        if (csvFormat) {
+            return new CsvChunkBuilder(tableRowType, tableListType, maxRows, maxBytesPerRequest, chunks);
+        }
+        return new ValuesChunkBuilder(tableRowType, tableListType, maxRows, maxBytesPerRequest, chunks);
+    }
+
+    /**
+     * Sends the chunk and reports its latency and status to the metrics and to the adaptive controller
+     */
+    private CompletableFuture<Status> upload(Chunk chunk) {
+        AdaptiveBatching.Sample sample = adaptive != null ? adaptive.start() : null;
+        long startNanos = System.nanoTime();
+        return chunk.upload(client, tablePath).whenComplete((status, th) -> {
+            StatusCode code = th != null ? StatusCode.CLIENT_INTERNAL_ERROR : status.getCode();
+            upsertLatency.record(System.nanoTime() - startNanos);
+            requests.increment();
+            bytesSent.increment(chunk.bytesCount());
+            if (code == StatusCode.SUCCESS) {
+                rowsUpserted.increment(chunk.rowsCount());
+            } else {
+                failedRequests.increment();
+            }
+            // retries of the shared client are counted for all its plugins
+            metrics.gauge("bulk_upsert_retries", client.getRetriesCount());
+
+            if (sample != null) {
+                adaptive.complete(sample, code);
+            }
+        });
+    }
+
+    /**
+     * The window of inflight batches is limited by the adaptive concurrency limit and by max_inflight_batches
+     */
+    private void acquireWindow() {
+        if (adaptive != null) {
+            adaptive.acquire();
+        }
+        inflightBatches.acquireUninterruptibly();
+    }
+
+    private boolean tryAcquireWindow() {
+        if (adaptive != null && !adaptive.tryAcquire()) {
+            return false;
+        }
+        if (!inflightBatches.tryAcquire()) {
+            if (adaptive != null) {
+                adaptive.release();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void releaseWindow() {
+        inflightBatches.release();
+        if (adaptive != null) {
+            adaptive.release();
+        }
+    }
+
+    private boolean readRow(Event ev, Value<?>[] fields) {
+        for (int idx = 0; idx < fieldReaders.length; idx++) {
+            fields[idx] = fieldReaders[idx].readField(ev);
+            if (fields[idx] == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void checkInflightError() {
+        // report the failure of one of previous batches to the pipeline
+        Status error = inflightError.getAndSet(null);
+        if (error != null) {
+            error.expectSuccess("bulk upsert problem");
+        }
+    }
+
+    private void bulkUpsertAsync(Chunk chunk) {
+        checkInflightError();
+
+        // blocks the worker only when the window of inflight batches is full
+        acquireWindow();
+        upload(chunk).whenComplete((status, th) -> {
+            releaseWindow();
+            if (th != null) {
+                logger.error("bulk upsert of {} rows to {} failed", chunk.rowsCount(), tablePath, th);
+                inflightError.compareAndSet(null, Status.of(StatusCode.CLIENT_INTERNAL_ERROR)
+                        .withIssues(Issue.of(String.valueOf(th.getMessage()), Issue.Severity.ERROR)));
+            } else if (!status.isSuccess()) {
+                logger.error("bulk upsert of {} rows to {} failed with status {}", chunk.rowsCount(), tablePath,
+                        status);
+                inflightError.compareAndSet(null, status);
+            }
+        });
+    }
+
+    /**
+     * Chunks go to the spill queue instead of blocking of the pipeline when the window of inflight batches is full or
+     * YDB is temporary unavailable. While the queue has any records, new chunks are appended to it, so the drainer
+     * replays them in the original order.
+     */
+    private void uploadOrSpill(List<Chunk> chunks) {
+        checkInflightError();
+
+        List<CompletableFuture<Status>> futures = new ArrayList<>(chunks.size());
+        for (Chunk chunk : chunks) {
+            // without the window of inflight batches the worker waits for its own chunks as usual
+            boolean windowFull = maxInflightBatches > 1 && !tryAcquireWindow();
+            if ((windowFull || !spill.isEmpty()) && spillChunk(chunk)) {
+                if (!windowFull && maxInflightBatches > 1) {
+                    releaseWindow();
                 }
+                continue;
+            }
+            if (windowFull) {
+                // the spill queue is full, so the worker waits for YDB
+                acquireWindow();
+            }
+
+            futures.add(upload(chunk).handle((status, th) -> {
+                // the window is released after the spilling, stop() waits for the window before closing of the queue
+                try {
+                    return completeUpload(chunk, status, th);
+                } finally {
+                    if (maxInflightBatches > 1) {
+                        releaseWindow();
+                    }
+                }
+            }));
+        }
+
+        for (CompletableFuture<Status> future : futures) {
+            if (maxInflightBatches > 1) {
+                future.thenAccept(status -> {
+                    if (!status.isSuccess()) {
+                        inflightError.compareAndSet(null, status);
+                    }
+                });
+            } else {
+                future.join().expectSuccess("bulk upsert problem");
+            }
+        }
+    }
+
+    private Status completeUpload(Chunk chunk, Status status, Throwable th) {
+        if (th != null) {
+            logger.error("bulk upsert of {} rows to {} failed", chunk.rowsCount(), tablePath, th);
+            return Status.of(StatusCode.CLIENT_INTERNAL_ERROR)
+                    .withIssues(Issue.of(String.valueOf(th.getMessage()), Issue.Severity.ERROR));
+        }
+        if (!status.isSuccess() && SPILLABLE_STATUSES.contains(status.getCode()) && spillChunk(chunk)) {
+            return Status.SUCCESS;
+        }
+        if (!status.isSuccess()) {
+            logger.error("bulk upsert of {} rows to {} failed with status {}", chunk.rowsCount(), tablePath, status);
+        }
+        return status;
+    }
+
+    private boolean spillChunk(Chunk chunk) {
+        if (!spill.offer(chunk.format(), chunk.serialize())) {
+            logger.warn("spill queue of {} is full, {} rows are not spilled", tablePath, chunk.rowsCount());
+            return false;
+        }
+        logger.debug("{} rows of {} are spilled", chunk.rowsCount(), tablePath);
+        rowsSpilled.increment(chunk.rowsCount());
+        metrics.gauge("spill_pending_records", spill.pendingRecords());
+        return true;
+    }
+
+    private void drainSpill() {
+        // an exception of the scheduled task cancels all its next runs
+        try {
+            replaySpilled();
+        } catch (RuntimeException ex) {
+            logger.error("replay of spilled batches to {} failed", tablePath, ex);
+        }
+    }
+
+    /**
+     * Replays one spilled chunk, the rate of replays is limited by the delay of the drainer
+     */
+    private void replaySpilled() {
+        SpillQueue.Record record = spill.peek();
+        if (record == null) {
+            return;
+        }
+
+        Chunk chunk;
+        try {
+            chunk = restoreChunk(record);
+        } catch (RuntimeException ex) {
+            logger.error("cannot restore spilled batch of {}", tablePath, ex);
+            rejectSpilled();
+            return;
+        }
+
+        Status status;
+        try {
+            status = upload(chunk).join();
+        } catch (RuntimeException ex) {
+            logger.warn("replay of spilled batch to {} failed", tablePath, ex);
+            return;
+        }
+
+        if (status.isSuccess()) {
+            spill.remove();
+            metrics.gauge("spill_pending_records", spill.pendingRecords());
+            if (spill.isEmpty()) {
+                logger.info("spill queue of {} is drained", tablePath);
             }
-            return tableRowType.newValueUnsafe(fields);
-        }).filter(Objects::nonNull).collect(Collectors.toList());
+        } else if (SPILLABLE_STATUSES.contains(status.getCode())) {
+            logger.debug("replay of spilled batch to {} is postponed, status {}", tablePath, status);
+        } else {
+            logger.error("replay of spilled batch of {} rows to {} failed with status {}", chunk.rowsCount(),
+                    tablePath, status);
+            rejectSpilled();
+        }
+    }
 
-        if (!eventToWrite.isEmpty()) {
-            client.bulkUpsert(tablePath, ListType.of(tableRowType).newValue(eventToWrite));
+    /**
+     * Batch which can't be replayed is moved out of the queue, so it doesn't block next batches but isn't lost
+     */
+    private void rejectSpilled() {
+        Path path = spill.reject();
+        spillRejected.increment();
+        metrics.gauge("spill_pending_records", spill.pendingRecords());
+        if (path != null) {
+            logger.error("spilled batch of {} is rejected and saved to {}", tablePath, path);
+        } else {
+            logger.error("spilled batch of {} is rejected and lost", tablePath);
+        }
+    }
+
+    private static Chunk restoreChunk(SpillQueue.Record record) {
+        switch (record.format()) {
+            case VALUES_FORMAT:
+                try {
+                    ValueProtos.TypedValue typed = ValueProtos.TypedValue.parseFrom(record.data());
+                    return new ValuesChunk((ListValue) ProtoValue.fromPb(ProtoType.fromPb(typed.getType()),
+                            typed.getValue()), record.data().length);
+                } catch (InvalidProtocolBufferException e) {
+                    throw new IllegalStateException("Cannot parse spilled batch", e);
+                }
+            case CSV_FORMAT:
+                int rowsCount = -1; // the first line is the header
+                for (byte b : record.data()) {
+                    if (b == '\n') {
+                        rowsCount++;
+                    }
+                }
+                return new CsvChunk(rowsCount, record.data());
+            default:
+                throw new IllegalStateException("Unknown format " + record.format() + " of spilled batch");
         }
     }
 
     @Override
     public void stop() {
+        if (partitionsRefresher != null) {
+            partitionsRefresher.shutdownNow();
+        }
+        if (spillDrainer != null) {
+            // the current replay isn't interrupted and is finished before closing of the queue and the client
+            spillDrainer.shutdown();
+            awaitTermination(spillDrainer);
+        }
+
+        // wait for all inflight batches before closing of the client
+        inflightBatches.acquireUninterruptibly(maxInflightBatches);
+        if (spill != null) {
+            // not replayed records stay on the disk until the next start
+            spill.close();
+        }
         client.close();
         stopped.countDown();
     }
 
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     public void awaitStop() throws InterruptedException {
         stopped.await();
@@ -147,7 +943,30 @@ public class YdbStorage implements Output {
                 TABLE_NAME,
                 UUID_COLUMN_NAME,
                 TIMESTAMP_COLUMN_NAME,
-                COLUMNS
+                COLUMNS,
+                MAX_INFLIGHT_BATCHES,
+                MAX_ROWS_PER_REQUEST,
+                MAX_BYTES_PER_REQUEST,
+                PARTITION_ROUTING,
+                PARTITIONS_REFRESH_INTERVAL,
+                INGEST_FORMAT,
+                ADAPTIVE_BATCHING,
+                TARGET_LATENCY,
+                MIN_ROWS_PER_REQUEST,
+                SPILL_PATH,
+                SPILL_SEGMENT_SIZE,
+                SPILL_MAX_BYTES,
+                SPILL_DRAIN_RATE,
+                SESSION_POOL_MIN_SIZE,
+                SESSION_POOL_MAX_SIZE,
+                SESSION_KEEP_ALIVE_TIME,
+                SESSION_MAX_IDLE_TIME,
+                SESSION_POOL_PREWARM,
+                RETRY_MAX_RETRIES,
+                RETRY_BACKOFF_SLOT,
+                RETRY_BACKOFF_CEILING,
+                RETRY_IDEMPOTENT,
+                REQUEST_TIMEOUT
         );
     }
 
@@ -156,6 +975,16 @@ public class YdbStorage implements Output {
         return id;
     }
 
+    private static boolean parseIngestFormat(String format) {
+        if (format == null || "values".equalsIgnoreCase(format)) {
+            return false;
+        }
+        if ("csv".equalsIgnoreCase(format)) {
+            return true;
+        }
+        throw new IllegalStateException("Unsupported " + INGEST_FORMAT.name() + " value " + format);
+    }
+
     private static AuthProvider createAuthProvider(Configuration config) {
         String saKeyFile = config.get(SA_KEY_FILE);
         if (saKeyFile != null && !saKeyFile.isEmpty()) {
@@ -188,13 +1017,14 @@ public class YdbStorage implements Output {
 
     private static FieldReader uuidFieldGenerator(Type type, Supplier<UUID> generator) {
         if (type instanceof PrimitiveType) {
-            return ev -> TypeConverter.toValue(generator.get(), (PrimitiveType) type);
+            TypeConverter.ColumnConverter converter = TypeConverter.compile((PrimitiveType) type);
+            return ev -> converter.convert(generator.get());
         }
         if (type instanceof OptionalType) {
             OptionalType optional = (OptionalType) type;
             if (optional.getItemType() instanceof PrimitiveType) {
-                PrimitiveType inner = (PrimitiveType) optional.getItemType();
-                return ev -> optional.newValue(TypeConverter.toValue(generator.get(), inner));
+                TypeConverter.ColumnConverter converter = TypeConverter.compile((PrimitiveType) optional.getItemType());
+                return ev -> optional.newValue(converter.convert(generator.get()));
             }
         }
         throw new IllegalStateException("Unsupported type " + type + " for uuid column");
@@ -202,37 +1032,81 @@ public class YdbStorage implements Output {
 
     private static FieldReader timestampFieldReader(Type type) {
         if (type instanceof PrimitiveType) {
-            return ev -> TypeConverter.toValue(ev.getEventTimestamp(), (PrimitiveType) type);
+            TypeConverter.ColumnConverter converter = TypeConverter.compile((PrimitiveType) type);
+            return ev -> converter.convert(ev.getEventTimestamp());
         }
         if (type instanceof OptionalType) {
             OptionalType optional = (OptionalType) type;
             if (optional.getItemType() instanceof PrimitiveType) {
-                PrimitiveType inner = (PrimitiveType) optional.getItemType();
-                return ev -> optional.newValue(TypeConverter.toValue(ev.getEventTimestamp(), inner));
+                TypeConverter.ColumnConverter converter = TypeConverter.compile((PrimitiveType) optional.getItemType());
+                return ev -> optional.newValue(converter.convert(ev.getEventTimestamp()));
             }
         }
         throw new IllegalStateException("Unsupported type " + type + " for timestamp column");
     }
 
-    private static FieldReader eventFieldReader(String name, Type type) {
+    /**
+     * Columns mapping is the hash of column name to the field reference, columns without mapping are read from the
+     * fields with the same name
+     */
+    private static Map<String, FieldAccessor> parseColumnsMapping(Map<String, Object> columns) {
+        if (columns == null || columns.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, FieldAccessor> mapping = new HashMap<>();
+        for (Map.Entry<String, Object> entry : columns.entrySet()) {
+            if (entry.getValue() == null) {
+                throw new IllegalStateException("Empty field reference for column " + entry.getKey());
+            }
+            mapping.put(entry.getKey(), FieldAccessor.of(String.valueOf(entry.getValue())));
+        }
+        return mapping;
+    }
+
+    private static FieldReader eventFieldReader(FieldAccessor field, Type type) {
         if (type instanceof PrimitiveType) {
-            return ev -> TypeConverter.toValue(ev.getField(name), (PrimitiveType) type);
+            TypeConverter.ColumnConverter converter = TypeConverter.compile((PrimitiveType) type);
+            return ev -> converter.convert(field.get(ev));
         }
         if (type instanceof OptionalType) {
             OptionalType optional = (OptionalType) type;
 
             if (optional.getItemType() instanceof PrimitiveType) {
-                PrimitiveType inner = (PrimitiveType) optional.getItemType();
+                TypeConverter.ColumnConverter converter = TypeConverter.compile((PrimitiveType) optional.getItemType());
                 return (ev) -> {
-                    Object value = ev.getField(name);
+                    Object value = field.get(ev);
                     if (value == null) {
                         return optional.emptyValue();
                     } else {
-                        return optional.newValue(TypeConverter.toValue(value, inner));
+                        return optional.newValue(converter.convert(value));
                     }
                 };
             }
         }
-        throw new IllegalStateException("Unsupported type " + type + " for field " + name);
+        throw new IllegalStateException("Unsupported type " + type + " for field " + field.reference());
+    }
+
+    /**
+     * Rough estimate of the size of the value in the serialized BulkUpsert request
+     */
+    private static long estimateSize(Value<?> value) {
+        if (value instanceof OptionalValue) {
+            OptionalValue optional = (OptionalValue) value;
+            return optional.isPresent() ? 1 + estimateSize(optional.get()) : 2;
+        }
+        if (value instanceof PrimitiveValue) {
+            PrimitiveValue primitive = (PrimitiveValue) value;
+            switch (primitive.getType()) {
+                case Text: return 4 + primitive.getText().length();
+                case Bytes: return 4 + primitive.getBytesUnsafe().length;
+                case Json: return 4 + primitive.getJson().length();
+                case JsonDocument: return 4 + primitive.getJsonDocument().length();
+                case Yson: return 4 + primitive.getYsonUnsafe().length;
+                case Uuid: return 18;
+                default: return 10;
+            }
+        }
+        return 16;
     }
 }
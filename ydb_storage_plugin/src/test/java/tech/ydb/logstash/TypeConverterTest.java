@@ -0,0 +1,127 @@
+package tech.ydb.logstash;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import tech.ydb.table.values.OptionalType;
+import tech.ydb.table.values.PrimitiveType;
+import tech.ydb.table.values.PrimitiveValue;
+
+public class TypeConverterTest {
+    @Test
+    public void testCachedConverter() {
+        TypeConverter.ColumnConverter converter = TypeConverter.compile(PrimitiveType.Int64);
+
+        // the first value compiles the converter for Integer, the second one uses the cached one
+        Assertions.assertEquals(PrimitiveValue.newInt64(1), converter.convert(1));
+        Assertions.assertEquals(PrimitiveValue.newInt64(2), converter.convert(2));
+
+        // other class of the value replaces the cached converter
+        Assertions.assertEquals(PrimitiveValue.newInt64(3), converter.convert(3L));
+        Assertions.assertEquals(PrimitiveValue.newInt64(4), converter.convert((short) 4));
+        Assertions.assertEquals(PrimitiveValue.newInt64(5), converter.convert(5));
+
+        // unsupported class doesn't replace the cached converter
+        Assertions.assertNull(converter.convert("6"));
+        Assertions.assertNull(converter.convert(6.5d));
+        Assertions.assertEquals(PrimitiveValue.newInt64(7), converter.convert(7));
+    }
+
+    private static void assertConversion(Object value, PrimitiveType type, PrimitiveValue expected) {
+        TypeConverter.ColumnConverter converter = TypeConverter.compile(type);
+        String message = "Conversion of " + value.getClass().getSimpleName() + " " + value + " to " + type;
+        // the first call is the cache miss, the second one is the cache hit
+        Assertions.assertEquals(expected, converter.convert(value), message);
+        Assertions.assertEquals(expected, converter.convert(value), message);
+        Assertions.assertEquals(expected, TypeConverter.toValue(value, type), message);
+    }
+
+    @Test
+    public void testConversions() {
+        assertConversion(true, PrimitiveType.Bool, PrimitiveValue.newBool(true));
+        assertConversion(true, PrimitiveType.Text, PrimitiveValue.newText("true"));
+        assertConversion(true, PrimitiveType.Int32, null);
+
+        assertConversion((byte) 1, PrimitiveType.Int8, PrimitiveValue.newInt8((byte) 1));
+        assertConversion((byte) 1, PrimitiveType.Uint64, PrimitiveValue.newUint64(1));
+        assertConversion((byte) 1, PrimitiveType.Text, PrimitiveValue.newText("1"));
+        assertConversion((byte) 1, PrimitiveType.Double, PrimitiveValue.newDouble(1d));
+
+        // narrowing conversions keep the low bits of the value
+        assertConversion((short) 300, PrimitiveType.Int8, PrimitiveValue.newInt8((byte) 44));
+        assertConversion((short) 2, PrimitiveType.Uint16, PrimitiveValue.newUint16(2));
+        assertConversion((short) 2, PrimitiveType.Float, PrimitiveValue.newFloat(2f));
+
+        assertConversion(3, PrimitiveType.Int16, PrimitiveValue.newInt16((short) 3));
+        assertConversion(3, PrimitiveType.Int64, PrimitiveValue.newInt64(3));
+        assertConversion(3, PrimitiveType.Uint32, PrimitiveValue.newUint32(3));
+        assertConversion(3, PrimitiveType.Timestamp, null);
+
+        // long values of date and time columns are epoch millis
+        assertConversion(4L, PrimitiveType.Int32, PrimitiveValue.newInt32(4));
+        assertConversion(4L, PrimitiveType.Uint8, PrimitiveValue.newUint8(4));
+        assertConversion(1581601437567L, PrimitiveType.Date, PrimitiveValue.newDate(LocalDate.of(2020, 2, 13)));
+        assertConversion(1581601437567L, PrimitiveType.Datetime,
+                PrimitiveValue.newDatetime(LocalDateTime.of(2020, 2, 13, 13, 43, 57)));
+        assertConversion(1581601437567L, PrimitiveType.Timestamp,
+                PrimitiveValue.newTimestamp(Instant.parse("2020-02-13T13:43:57.567Z")));
+
+        assertConversion(5.5f, PrimitiveType.Double, PrimitiveValue.newDouble(5.5d));
+        assertConversion(5.5f, PrimitiveType.Text, PrimitiveValue.newText("5.5"));
+        assertConversion(5.5f, PrimitiveType.Int64, null);
+        assertConversion(6.5d, PrimitiveType.Float, PrimitiveValue.newFloat(6.5f));
+        assertConversion(6.5d, PrimitiveType.Text, PrimitiveValue.newText("6.5"));
+
+        assertConversion("text", PrimitiveType.Text, PrimitiveValue.newText("text"));
+        assertConversion("text", PrimitiveType.Bytes, PrimitiveValue.newBytes(new byte[] {'t', 'e', 'x', 't'}));
+        assertConversion("text", PrimitiveType.Int64, null);
+        assertConversion(new byte[] {1, 2, 3}, PrimitiveType.Bytes, PrimitiveValue.newBytes(new byte[] {1, 2, 3}));
+        assertConversion(new byte[] {1, 2, 3}, PrimitiveType.Text, null);
+
+        Instant ts = Instant.parse("2020-02-13T13:43:57.567Z");
+        assertConversion(ts, PrimitiveType.Timestamp, PrimitiveValue.newTimestamp(ts));
+        assertConversion(ts, PrimitiveType.Date, PrimitiveValue.newDate(LocalDate.of(2020, 2, 13)));
+        assertConversion(ts, PrimitiveType.Text, null);
+
+        UUID uuid = UUID.fromString("123e4567-e89b-12d3-a456-426614174000");
+        assertConversion(uuid, PrimitiveType.Uuid, PrimitiveValue.newUuid(uuid));
+        assertConversion(uuid, PrimitiveType.Text, PrimitiveValue.newText("123e4567-e89b-12d3-a456-426614174000"));
+        // UUID bytes are the big-endian most significant bits followed by the least significant ones
+        assertConversion(uuid, PrimitiveType.Bytes, PrimitiveValue.newBytes(new byte[] {
+            0x12, 0x3e, 0x45, 0x67, (byte) 0xe8, (byte) 0x9b, 0x12, (byte) 0xd3,
+            (byte) 0xa4, 0x56, 0x42, 0x66, 0x14, 0x17, 0x40, 0x00
+        }));
+    }
+
+    @Test
+    public void testNullValues() {
+        TypeConverter.ColumnConverter converter = TypeConverter.compile(PrimitiveType.Text);
+
+        Assertions.assertNull(converter.convert(null));
+        Assertions.assertNull(TypeConverter.toValue(null, PrimitiveType.Text));
+
+        // null between values of the same class doesn't reset the cached converter
+        Assertions.assertEquals(PrimitiveValue.newText("a"), converter.convert("a"));
+        Assertions.assertNull(converter.convert(null));
+        Assertions.assertEquals(PrimitiveValue.newText("b"), converter.convert("b"));
+    }
+
+    @Test
+    public void testOptionalValues() {
+        // optional columns convert the value by the converter of the item type
+        OptionalType optional = OptionalType.of(PrimitiveType.Timestamp);
+        TypeConverter.ColumnConverter converter = TypeConverter.compile((PrimitiveType) optional.getItemType());
+
+        Instant ts = Instant.ofEpochMilli(1581601437567L);
+        Assertions.assertEquals(optional.newValue(PrimitiveValue.newTimestamp(ts)),
+                optional.newValue(converter.convert(ts)));
+        Assertions.assertEquals(optional.newValue(PrimitiveValue.newTimestamp(ts)),
+                optional.newValue(converter.convert(ts.toEpochMilli())));
+        Assertions.assertNull(converter.convert(null));
+    }
+}
@@ -1,23 +1,42 @@
 package tech.ydb.logstash;
 
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.StreamSupport;
+
+import co.elastic.logstash.api.Context;
+import co.elastic.logstash.api.CounterMetric;
+import co.elastic.logstash.api.NamespacedMetric;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
 import org.logstash.Event;
 import org.logstash.plugins.ConfigurationImpl;
 
+import tech.ydb.core.Status;
+import tech.ydb.core.StatusCode;
 import tech.ydb.table.SessionRetryContext;
+import tech.ydb.table.description.TableDescription;
 import tech.ydb.table.impl.SimpleTableClient;
 import tech.ydb.table.query.Params;
 import tech.ydb.table.rpc.grpc.GrpcTableRpc;
 import tech.ydb.table.settings.ExecuteScanQuerySettings;
+import tech.ydb.table.values.ListValue;
 import tech.ydb.table.values.Value;
 import tech.ydb.test.junit5.GrpcTransportExtension;
 import tech.ydb.test.junit5.YdbHelperExtension;
@@ -201,6 +220,188 @@ public class YdbStoragePluginTest {
         }
    }
 
+    @Test
+    public void testInflightBatches() throws InterruptedException {
+        executeSchemeQuery(""
+                + "CREATE TABLE logstash_inflight_test("
+                + "  id Text NOT NULL,"
+                + "  ts Timestamp NOT NULL,"
+                + "  device Text,"
+                + "  priority Uint16,"
+                + "  PRIMARY KEY (id)"
+                + ");"
+        );
+
+        Map<String, Object> config = createConfigMap();
+        config.put(YdbStorage.TABLE_NAME.name(), "logstash_inflight_test");
+        config.put(YdbStorage.UUID_COLUMN_NAME.name(), "id");
+        config.put(YdbStorage.TIMESTAMP_COLUMN_NAME.name(), "ts");
+        config.put(YdbStorage.MAX_INFLIGHT_BATCHES.name(), 4L);
+        // session pool is sized for inflight batches
+        config.put(YdbStorage.SESSION_POOL_MIN_SIZE.name(), 4L);
+        config.put(YdbStorage.SESSION_POOL_MAX_SIZE.name(), 4L);
+        config.put(YdbStorage.RETRY_IDEMPOTENT.name(), true);
+
+        try {
+            YdbStorage plugin = new YdbStorage("test-inflight", new ConfigurationImpl(config), null);
+
+            for (int batch = 0; batch < 10; batch++) {
+                List<co.elastic.logstash.api.Event> events = new ArrayList<>();
+                for (int idx = 0; idx < 100; idx++) {
+                    Event ev = new org.logstash.Event();
+                    ev.setEventTimestamp(TS1.plusMillis(batch * 100 + idx));
+                    ev.setField("device", "dev" + batch);
+                    ev.setField("priority", idx);
+                    events.add(ev);
+                }
+                plugin.output(events);
+            }
+
+            plugin.stop();
+            plugin.awaitStop();
+
+            List<Map<String, Value<?>>> rows = executeScanQuery("SELECT * FROM logstash_inflight_test ORDER by ts");
+            Assertions.assertEquals(1000, rows.size());
+
+            Assertions.assertEquals(TS1, rows.get(0).get("ts").asData().getTimestamp());
+            Assertions.assertEquals("dev0", rows.get(0).get("device").asOptional().get().asData().getText());
+            Assertions.assertEquals(TS1.plusMillis(999), rows.get(999).get("ts").asData().getTimestamp());
+            Assertions.assertEquals("dev9", rows.get(999).get("device").asOptional().get().asData().getText());
+            Assertions.assertEquals(99, rows.get(999).get("priority").asOptional().get().asData().getUint16());
+        } finally {
+            executeSchemeQuery("DROP TABLE logstash_inflight_test");
+        }
+    }
+
+    @Test
+    public void testSplitBatches() {
+        executeSchemeQuery(""
+                + "CREATE TABLE logstash_split_test("
+                + "  id Text NOT NULL,"
+                + "  ts Timestamp NOT NULL,"
+                + "  message Text,"
+                + "  PRIMARY KEY (id)"
+                + ");"
+        );
+
+        Map<String, Object> config = createConfigMap();
+        config.put(YdbStorage.TABLE_NAME.name(), "logstash_split_test");
+        config.put(YdbStorage.UUID_COLUMN_NAME.name(), "id");
+        config.put(YdbStorage.TIMESTAMP_COLUMN_NAME.name(), "ts");
+        config.put(YdbStorage.MAX_ROWS_PER_REQUEST.name(), 7L);
+        config.put(YdbStorage.MAX_BYTES_PER_REQUEST.name(), 1024L);
+
+        try {
+            YdbStorage plugin = new YdbStorage("test-split", new ConfigurationImpl(config), null);
+
+            List<co.elastic.logstash.api.Event> events = new ArrayList<>();
+            for (int idx = 0; idx < 100; idx++) {
+                Event ev = new org.logstash.Event();
+                ev.setEventTimestamp(TS2.plusMillis(idx));
+                // every tenth message is longer than max_bytes_per_request
+                ev.setField("message", idx % 10 == 0 ? String.join("", Collections.nCopies(2000, "m")) : "m" + idx);
+                events.add(ev);
+            }
+            plugin.output(events);
+
+            List<Map<String, Value<?>>> rows = executeScanQuery("SELECT * FROM logstash_split_test ORDER by ts");
+            Assertions.assertEquals(100, rows.size());
+            for (int idx = 0; idx < 100; idx++) {
+                Assertions.assertEquals(TS2.plusMillis(idx), rows.get(idx).get("ts").asData().getTimestamp());
+                String message = rows.get(idx).get("message").asOptional().get().asData().getText();
+                Assertions.assertEquals(idx % 10 == 0 ? 2000 : ("m" + idx).length(), message.length());
+            }
+        } finally {
+            executeSchemeQuery("DROP TABLE logstash_split_test");
+        }
+    }
+
+    @Test
+    public void testPartitionRouting() {
+        executeSchemeQuery(""
+                + "CREATE TABLE logstash_partitions_test("
+                + "  id Uint64 NOT NULL,"
+                + "  ts Timestamp NOT NULL,"
+                + "  device Text,"
+                + "  PRIMARY KEY (id)"
+                + ") WITH (PARTITION_AT_KEYS = (100, 200, 300));"
+        );
+
+        Map<String, Object> config = createConfigMap();
+        config.put(YdbStorage.TABLE_NAME.name(), "logstash_partitions_test");
+        config.put(YdbStorage.TIMESTAMP_COLUMN_NAME.name(), "ts");
+        config.put(YdbStorage.PARTITION_ROUTING.name(), true);
+        config.put(YdbStorage.MAX_ROWS_PER_REQUEST.name(), 20L);
+
+        try {
+            YdbStorage plugin = new YdbStorage("test-partitions", new ConfigurationImpl(config), null);
+
+            List<co.elastic.logstash.api.Event> events = new ArrayList<>();
+            for (int idx = 0; idx < 400; idx++) {
+                Event ev = new org.logstash.Event();
+                ev.setEventTimestamp(TS3);
+                ev.setField("id", (idx * 7) % 400);
+                ev.setField("device", "dev" + idx);
+                events.add(ev);
+            }
+            plugin.output(events);
+
+            List<Map<String, Value<?>>> rows = executeScanQuery("SELECT * FROM logstash_partitions_test ORDER by id");
+            Assertions.assertEquals(400, rows.size());
+            for (int idx = 0; idx < 400; idx++) {
+                Assertions.assertEquals(idx, rows.get(idx).get("id").asData().getUint64());
+            }
+        } finally {
+            executeSchemeQuery("DROP TABLE logstash_partitions_test");
+        }
+    }
+
+    @Test
+    public void testSharedClient() throws InterruptedException {
+        executeSchemeQuery(""
+                + "CREATE TABLE logstash_shared_test("
+                + "  id Text NOT NULL,"
+                + "  ts Timestamp NOT NULL,"
+                + "  device Text,"
+                + "  PRIMARY KEY (id)"
+                + ");"
+        );
+
+        Map<String, Object> config = createConfigMap();
+        config.put(YdbStorage.TABLE_NAME.name(), "logstash_shared_test");
+        config.put(YdbStorage.UUID_COLUMN_NAME.name(), "id");
+        config.put(YdbStorage.TIMESTAMP_COLUMN_NAME.name(), "ts");
+
+        try {
+            YdbStorage plugin1 = new YdbStorage("test-shared-1", new ConfigurationImpl(config), null);
+            YdbStorage plugin2 = new YdbStorage("test-shared-2", new ConfigurationImpl(config), null);
+
+            Event ev1 = new org.logstash.Event();
+            ev1.setEventTimestamp(TS1);
+            ev1.setField("device", "dev1");
+
+            Event ev2 = new org.logstash.Event();
+            ev2.setEventTimestamp(TS2);
+            ev2.setField("device", "dev2");
+
+            plugin1.output(Collections.singletonList(ev1));
+            plugin1.stop();
+            plugin1.awaitStop();
+
+            // the client is shared, so it must be still alive for the second plugin
+            plugin2.output(Collections.singletonList(ev2));
+            plugin2.stop();
+            plugin2.awaitStop();
+
+            List<Map<String, Value<?>>> rows = executeScanQuery("SELECT * FROM logstash_shared_test ORDER by ts");
+            Assertions.assertEquals(2, rows.size());
+            Assertions.assertEquals("dev1", rows.get(0).get("device").asOptional().get().asData().getText());
+            Assertions.assertEquals("dev2", rows.get(1).get("device").asOptional().get().asData().getText());
+        } finally {
+            executeSchemeQuery("DROP TABLE logstash_shared_test");
+        }
+    }
+
    @Test
     public void testColumnTable() {
         executeSchemeQuery(""
@@ -273,4 +474,469 @@ public class YdbStoragePluginTest {
             executeSchemeQuery("DROP TABLE logstash_column_test");
         }
     }
+
+    @Test
+    public void testCsvIngestFormat() {
+        executeSchemeQuery(""
+                + "CREATE TABLE logstash_csv_test("
+                + "  id Text NOT NULL,"
+                + "  ts Timestamp NOT NULL,"
+                + "  message Text,"
+                + "  value Double,"
+                + "  counter Uint64,"
+                + "  PRIMARY KEY (id)"
+                + ") WITH (STORE = COLUMN);"
+        );
+
+        Map<String, Object> config = createConfigMap();
+        config.put(YdbStorage.TABLE_NAME.name(), "logstash_csv_test");
+        config.put(YdbStorage.TIMESTAMP_COLUMN_NAME.name(), "ts");
+        config.put(YdbStorage.INGEST_FORMAT.name(), "csv");
+        config.put(YdbStorage.MAX_ROWS_PER_REQUEST.name(), 2L);
+
+        try {
+            YdbStorage plugin = new YdbStorage("test-csv", new ConfigurationImpl(config), null);
+
+            Event ev1 = new org.logstash.Event();
+            ev1.setEventTimestamp(TS1);
+            ev1.setField("id", "e1");
+            ev1.setField("message", "text with \"quotes\", commas\nand new lines");
+            ev1.setField("value", 1.5d);
+            ev1.setField("counter", -1L);
+
+            Event ev2 = new org.logstash.Event();
+            ev2.setEventTimestamp(TS2);
+            ev2.setField("id", "e2");
+            ev2.setField("message", "");
+
+            Event ev3 = new org.logstash.Event();
+            ev3.setEventTimestamp(TS3);
+            ev3.setField("id", "e3");
+            ev3.setField("message", "юникод");
+            ev3.setField("counter", 3L);
+
+            // text equal to the NULL marker of CSV is kept as is
+            Event ev4 = new org.logstash.Event();
+            ev4.setEventTimestamp(TS3.plusMillis(1));
+            ev4.setField("id", "e4");
+            ev4.setField("message", "\\N");
+
+            // long JSON text with many quotes, every quote is doubled in CSV
+            StringBuilder json = new StringBuilder();
+            for (int idx = 0; idx < 2000; idx++) {
+                json.append(idx == 0 ? "{" : ",").append("\"k").append(idx).append("\":\"v\"");
+            }
+            json.append("}");
+            Event ev5 = new org.logstash.Event();
+            ev5.setEventTimestamp(TS3.plusMillis(2));
+            ev5.setField("id", "e5");
+            ev5.setField("message", json.toString());
+
+            plugin.output(Arrays.asList(ev1, ev2, ev3, ev4, ev5));
+            plugin.stop();
+
+            List<Map<String, Value<?>>> rows = executeScanQuery("SELECT * FROM logstash_csv_test ORDER by ts");
+            Assertions.assertEquals(5, rows.size());
+
+            Assertions.assertEquals("e1", rows.get(0).get("id").asData().getText());
+            Assertions.assertEquals(TS1, rows.get(0).get("ts").asData().getTimestamp());
+            Assertions.assertEquals("text with \"quotes\", commas\nand new lines",
+                    rows.get(0).get("message").asOptional().get().asData().getText());
+            Assertions.assertEquals(1.5d, rows.get(0).get("value").asOptional().get().asData().getDouble());
+            Assertions.assertEquals(-1L, rows.get(0).get("counter").asOptional().get().asData().getUint64());
+
+            Assertions.assertEquals("e2", rows.get(1).get("id").asData().getText());
+            Assertions.assertEquals(TS2, rows.get(1).get("ts").asData().getTimestamp());
+            Assertions.assertEquals("", rows.get(1).get("message").asOptional().get().asData().getText());
+            Assertions.assertFalse(rows.get(1).get("value").asOptional().isPresent());
+            Assertions.assertFalse(rows.get(1).get("counter").asOptional().isPresent());
+
+            Assertions.assertEquals("e3", rows.get(2).get("id").asData().getText());
+            Assertions.assertEquals("юникод", rows.get(2).get("message").asOptional().get().asData().getText());
+            Assertions.assertEquals(3L, rows.get(2).get("counter").asOptional().get().asData().getUint64());
+
+            Assertions.assertEquals("e4", rows.get(3).get("id").asData().getText());
+            Assertions.assertEquals("\\N", rows.get(3).get("message").asOptional().get().asData().getText());
+            Assertions.assertFalse(rows.get(3).get("value").asOptional().isPresent());
+
+            Assertions.assertEquals("e5", rows.get(4).get("id").asData().getText());
+            Assertions.assertEquals(json.toString(), rows.get(4).get("message").asOptional().get().asData().getText());
+        } finally {
+            executeSchemeQuery("DROP TABLE logstash_csv_test");
+        }
+    }
+
+    @Test
+    public void testColumnsMapping() {
+        executeSchemeQuery(""
+                + "CREATE TABLE logstash_mapping_test("
+                + "  id Text NOT NULL,"
+                + "  host_name Text,"
+                + "  status Int32,"
+                + "  message Text,"
+                + "  PRIMARY KEY (id)"
+                + ");"
+        );
+
+        Map<String, Object> columns = new HashMap<>();
+        columns.put("id", "[event][id]");
+        columns.put("host_name", "[host][name]");
+        columns.put("status", "[http][response][status]");
+
+        Map<String, Object> config = createConfigMap();
+        config.put(YdbStorage.TABLE_NAME.name(), "logstash_mapping_test");
+        config.put(YdbStorage.COLUMNS.name(), columns);
+
+        try {
+            YdbStorage plugin = new YdbStorage("test-mapping", new ConfigurationImpl(config), null);
+
+            Event ev1 = new org.logstash.Event();
+            ev1.setField("[event][id]", "e1");
+            ev1.setField("[host][name]", "host1");
+            ev1.setField("[http][response][status]", 200);
+            ev1.setField("message", "first");
+
+            Event ev2 = new org.logstash.Event();
+            ev2.setField("[event][id]", "e2");
+            ev2.setField("message", "second");
+
+            // event without mapped key field is skipped
+            Event ev3 = new org.logstash.Event();
+            ev3.setField("id", "e3");
+            ev3.setField("message", "third");
+
+            plugin.output(Arrays.asList(ev1, ev2, ev3));
+
+            List<Map<String, Value<?>>> rows = executeScanQuery("SELECT * FROM logstash_mapping_test ORDER BY id");
+            Assertions.assertEquals(2, rows.size());
+
+            Assertions.assertEquals("e1", rows.get(0).get("id").asData().getText());
+            Assertions.assertEquals("host1", rows.get(0).get("host_name").asOptional().get().asData().getText());
+            Assertions.assertEquals(200, rows.get(0).get("status").asOptional().get().asData().getInt32());
+            Assertions.assertEquals("first", rows.get(0).get("message").asOptional().get().asData().getText());
+
+            Assertions.assertEquals("e2", rows.get(1).get("id").asData().getText());
+            Assertions.assertFalse(rows.get(1).get("host_name").asOptional().isPresent());
+            Assertions.assertFalse(rows.get(1).get("status").asOptional().isPresent());
+            Assertions.assertEquals("second", rows.get(1).get("message").asOptional().get().asData().getText());
+
+            columns.put("unknown", "[field]");
+            IllegalStateException ex = Assertions.assertThrows(IllegalStateException.class,
+                    () -> new YdbStorage("test-mapping-wrong", new ConfigurationImpl(config), null));
+            Assertions.assertEquals("Table logstash_mapping_test doesn't have column unknown", ex.getMessage());
+        } finally {
+            executeSchemeQuery("DROP TABLE logstash_mapping_test");
+        }
+    }
+
+    @Test
+    public void testSpillQueueReplay() throws Exception {
+        executeSchemeQuery(""
+                + "CREATE TABLE logstash_spill_test("
+                + "  id Text NOT NULL,"
+                + "  value Int32,"
+                + "  PRIMARY KEY (id)"
+                + ");"
+        );
+
+        Path spillPath = Files.createTempDirectory("ydb-spill");
+
+        // batch spilled by the previous run of the plugin
+        try (SpillQueue queue = new SpillQueue(spillPath.resolve("test-spill"), 1024, 1024 * 1024)) {
+            byte[] csv = "id,value\ns1,1\ne1,2\n".getBytes(StandardCharsets.UTF_8);
+            Assertions.assertTrue(queue.offer(YdbStorage.CSV_FORMAT, csv));
+        }
+
+        Map<String, Object> config = createConfigMap();
+        config.put(YdbStorage.TABLE_NAME.name(), "logstash_spill_test");
+        config.put(YdbStorage.SPILL_PATH.name(), spillPath.toString());
+        config.put(YdbStorage.SPILL_DRAIN_RATE.name(), 100L);
+
+        try {
+            YdbStorage plugin = new YdbStorage("test-spill", new ConfigurationImpl(config), null);
+
+            // the spill queue isn't empty, so the new batch is replayed after the spilled one
+            Event ev1 = new org.logstash.Event();
+            ev1.setField("id", "e1");
+            ev1.setField("value", 3);
+            plugin.output(Collections.singletonList(ev1));
+
+            // e1 has the value of the new batch only if the batches are replayed in order
+            boolean replayed = false;
+            for (int attempt = 0; attempt < 100 && !replayed; attempt++) {
+                Thread.sleep(100);
+                List<Map<String, Value<?>>> rows = executeScanQuery(
+                        "SELECT * FROM logstash_spill_test WHERE id = 'e1'");
+                replayed = !rows.isEmpty() && rows.get(0).get("value").asOptional().get().asData().getInt32() == 3;
+            }
+            // wait for the removal of the last replayed batch from the queue
+            Thread.sleep(500);
+            plugin.stop();
+
+            List<Map<String, Value<?>>> rows = executeScanQuery("SELECT * FROM logstash_spill_test ORDER BY id");
+            Assertions.assertEquals(2, rows.size());
+            Assertions.assertEquals("e1", rows.get(0).get("id").asData().getText());
+            Assertions.assertEquals(3, rows.get(0).get("value").asOptional().get().asData().getInt32());
+            Assertions.assertEquals("s1", rows.get(1).get("id").asData().getText());
+            Assertions.assertEquals(1, rows.get(1).get("value").asOptional().get().asData().getInt32());
+
+            try (SpillQueue queue = new SpillQueue(spillPath.resolve("test-spill"), 1024, 1024 * 1024)) {
+                Assertions.assertTrue(queue.isEmpty());
+            }
+        } finally {
+            executeSchemeQuery("DROP TABLE logstash_spill_test");
+        }
+    }
+
+    /**
+     * Client which responds to requests with the given statuses before sending of them to YDB
+     */
+    private static final class FailingClient implements YdbClient {
+        private final YdbClient client;
+        private final Queue<StatusCode> failures;
+
+        FailingClient(YdbClient client, StatusCode... failures) {
+            this.client = client;
+            this.failures = new ConcurrentLinkedQueue<>(Arrays.asList(failures));
+        }
+
+        @Override
+        public String getDatabase() {
+            return client.getDatabase();
+        }
+
+        @Override
+        public TableDescription desribeTable(String tablePath) {
+            return client.desribeTable(tablePath);
+        }
+
+        @Override
+        public void bulkUpsert(String tablePath, ListValue messages) {
+            client.bulkUpsert(tablePath, messages);
+        }
+
+        @Override
+        public CompletableFuture<Status> bulkUpsertAsync(String tablePath, ListValue messages) {
+            StatusCode failure = failures.poll();
+            if (failure != null) {
+                return CompletableFuture.completedFuture(Status.of(failure));
+            }
+            return client.bulkUpsertAsync(tablePath, messages);
+        }
+
+        @Override
+        public CompletableFuture<Status> bulkUpsertCsvAsync(String tablePath, byte[] csv) {
+            StatusCode failure = failures.poll();
+            if (failure != null) {
+                return CompletableFuture.completedFuture(Status.of(failure));
+            }
+            return client.bulkUpsertCsvAsync(tablePath, csv);
+        }
+
+        @Override
+        public long getRetriesCount() {
+            return client.getRetriesCount();
+        }
+
+        @Override
+        public void close() {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testSpillOnOverload() throws Exception {
+        executeSchemeQuery(""
+                + "CREATE TABLE logstash_overload_test("
+                + "  id Text NOT NULL,"
+                + "  value Int32,"
+                + "  PRIMARY KEY (id)"
+                + ");"
+        );
+
+        Path spillPath = Files.createTempDirectory("ydb-spill");
+
+        Map<String, Object> config = createConfigMap();
+        config.put(YdbStorage.TABLE_NAME.name(), "logstash_overload_test");
+        config.put(YdbStorage.SPILL_PATH.name(), spillPath.toString());
+        config.put(YdbStorage.SPILL_DRAIN_RATE.name(), 10L);
+
+        // the first upload and the first replay find YDB overloaded, the next replay is rejected by YDB
+        YdbClient.Factory factory = (connectionString, auth) -> new FailingClient(
+                new YdbClientImpl(connectionString, auth),
+                StatusCode.OVERLOADED, StatusCode.OVERLOADED, StatusCode.BAD_REQUEST);
+
+        Map<String, Object> metrics = new ConcurrentHashMap<>();
+        try {
+            YdbStorage plugin = new YdbStorage("test-overload", new ConfigurationImpl(config),
+                    metricsContext(metrics), factory, UUID::randomUUID);
+
+            // the first batch is spilled after the failure, the second one is spilled to keep the order
+            for (int idx = 1; idx <= 2; idx++) {
+                Event ev = new org.logstash.Event();
+                ev.setField("id", "e" + idx);
+                ev.setField("value", idx);
+                plugin.output(Collections.singletonList(ev));
+            }
+            Assertions.assertEquals(2L, metrics.get("rows_spilled"));
+
+            boolean drained = false;
+            for (int attempt = 0; attempt < 100 && !drained; attempt++) {
+                Thread.sleep(100);
+                drained = Long.valueOf(0).equals(metrics.get("spill_pending_records"));
+            }
+            plugin.stop();
+
+            // the first batch is rejected by YDB and saved aside of the queue
+            Assertions.assertEquals(1L, metrics.get("spill_rejected_batches"));
+            List<Map<String, Value<?>>> rows = executeScanQuery("SELECT * FROM logstash_overload_test");
+            Assertions.assertEquals(1, rows.size());
+            Assertions.assertEquals("e2", rows.get(0).get("id").asData().getText());
+
+            try (DirectoryStream<Path> rejected = Files.newDirectoryStream(
+                    spillPath.resolve("test-overload").resolve("rejected"))) {
+                Assertions.assertEquals(1, StreamSupport.stream(rejected.spliterator(), false).count());
+            }
+            try (SpillQueue queue = new SpillQueue(spillPath.resolve("test-overload"), 1024, 1024 * 1024)) {
+                Assertions.assertTrue(queue.isEmpty());
+            }
+        } finally {
+            executeSchemeQuery("DROP TABLE logstash_overload_test");
+        }
+    }
+
+    @Test
+    public void testAdaptiveBatching() {
+        executeSchemeQuery(""
+                + "CREATE TABLE logstash_adaptive_test("
+                + "  id Text NOT NULL,"
+                + "  ts Timestamp NOT NULL,"
+                + "  message Text,"
+                + "  PRIMARY KEY (id)"
+                + ");"
+        );
+
+        Map<String, Object> config = createConfigMap();
+        config.put(YdbStorage.TABLE_NAME.name(), "logstash_adaptive_test");
+        config.put(YdbStorage.UUID_COLUMN_NAME.name(), "id");
+        config.put(YdbStorage.TIMESTAMP_COLUMN_NAME.name(), "ts");
+        config.put(YdbStorage.MAX_INFLIGHT_BATCHES.name(), 4L);
+        config.put(YdbStorage.MAX_ROWS_PER_REQUEST.name(), 40L);
+        config.put(YdbStorage.MIN_ROWS_PER_REQUEST.name(), 5L);
+        config.put(YdbStorage.ADAPTIVE_BATCHING.name(), true);
+        // every request is slower than the target, so the batching is decreased to the minimum
+        config.put(YdbStorage.TARGET_LATENCY.name(), 1L);
+
+        try {
+            YdbStorage plugin = new YdbStorage("test-adaptive", new ConfigurationImpl(config), null);
+
+            for (int batch = 0; batch < 5; batch++) {
+                List<co.elastic.logstash.api.Event> events = new ArrayList<>();
+                for (int idx = 0; idx < 100; idx++) {
+                    Event ev = new org.logstash.Event();
+                    ev.setEventTimestamp(TS2.plusMillis(batch * 100 + idx));
+                    ev.setField("message", "m" + (batch * 100 + idx));
+                    events.add(ev);
+                }
+                plugin.output(events);
+            }
+            plugin.stop();
+
+            List<Map<String, Value<?>>> rows = executeScanQuery("SELECT * FROM logstash_adaptive_test ORDER by ts");
+            Assertions.assertEquals(500, rows.size());
+            for (int idx = 0; idx < 500; idx++) {
+                Assertions.assertEquals(TS2.plusMillis(idx), rows.get(idx).get("ts").asData().getTimestamp());
+                Assertions.assertEquals("m" + idx, rows.get(idx).get("message").asOptional().get().asData().getText());
+            }
+        } finally {
+            executeSchemeQuery("DROP TABLE logstash_adaptive_test");
+        }
+    }
+
+    /**
+     * Context with the metric which saves all reported values to the map
+     */
+    private static Context metricsContext(Map<String, Object> values) {
+        return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[] { Context.class },
+                (proxy, method, args) -> "getMetric".equals(method.getName()) ? recordingMetric("", values) : null);
+    }
+
+    private static NamespacedMetric recordingMetric(String prefix, Map<String, Object> values) {
+        return (NamespacedMetric) Proxy.newProxyInstance(NamespacedMetric.class.getClassLoader(),
+                new Class<?>[] { NamespacedMetric.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "namespace":
+                            return recordingMetric(prefix + String.join(".", (String[]) args[0]) + ".", values);
+                        case "counter":
+                            String name = prefix + args[0];
+                            return Proxy.newProxyInstance(CounterMetric.class.getClassLoader(),
+                                    new Class<?>[] { CounterMetric.class }, (counter, m, a) -> {
+                                        long delta = a != null && a.length > 0 ? ((Number) a[0]).longValue() : 1;
+                                        if (m.getName().equals("getValue")) {
+                                            return values.getOrDefault(name, 0L);
+                                        }
+                                        values.merge(name, delta, (v1, v2) -> (Long) v1 + (Long) v2);
+                                        return null;
+                                    });
+                        case "gauge":
+                            values.put(prefix + args[0], args[1]);
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    @Test
+    public void testMetrics() {
+        executeSchemeQuery(""
+                + "CREATE TABLE logstash_metrics_test("
+                + "  id Text NOT NULL,"
+                + "  ts Timestamp NOT NULL,"
+                + "  value Int64 NOT NULL,"
+                + "  PRIMARY KEY (id)"
+                + ");"
+        );
+
+        Map<String, Object> config = createConfigMap();
+        config.put(YdbStorage.TABLE_NAME.name(), "logstash_metrics_test");
+        config.put(YdbStorage.UUID_COLUMN_NAME.name(), "id");
+        config.put(YdbStorage.TIMESTAMP_COLUMN_NAME.name(), "ts");
+        config.put(YdbStorage.MAX_ROWS_PER_REQUEST.name(), 4L);
+
+        Map<String, Object> metrics = new ConcurrentHashMap<>();
+        try {
+            YdbStorage plugin = new YdbStorage("test-metrics", new ConfigurationImpl(config),
+                    metricsContext(metrics));
+
+            List<co.elastic.logstash.api.Event> events = new ArrayList<>();
+            for (int idx = 0; idx < 10; idx++) {
+                Event ev = new org.logstash.Event();
+                ev.setEventTimestamp(TS1.plusMillis(idx));
+                if (idx != 5) { // event without value is dropped
+                    ev.setField("value", idx);
+                }
+                events.add(ev);
+            }
+            plugin.output(events);
+            plugin.stop();
+
+            Assertions.assertEquals(9L, metrics.get("rows_upserted"));
+            Assertions.assertEquals(1L, metrics.get("rows_dropped"));
+            Assertions.assertEquals(3L, metrics.get("bulk_upserts"));
+            Assertions.assertNull(metrics.get("bulk_upsert_failures"));
+            Assertions.assertTrue((Long) metrics.get("bytes_sent") > 0);
+            Assertions.assertEquals(0L, metrics.get("bulk_upsert_retries"));
+
+            long buckets = 0;
+            for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+                if (entry.getKey().startsWith("bulk_upsert_latency.le_")) {
+                    buckets += (Long) entry.getValue();
+                }
+            }
+            Assertions.assertEquals(3, buckets);
+        } finally {
+            executeSchemeQuery("DROP TABLE logstash_metrics_test");
+        }
+    }
 }
\ No newline at end of file